@@ -0,0 +1,103 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring of ServerNodes running in this process, talking over loopback on free ports. Node IDs are 1 to n in ring
+ * order, with node 1 as the starting coordinator, so ring completion triggers an election that node n wins.
+ */
+class LoopbackRing {
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final ServerNode[] nodes;
+
+    /**
+     * Creates and starts every node but the coordinator, which is left to start.
+     * @param n number of nodes
+     * @param election election algorithm, as named by server.election
+     * @throws IOException if a port cannot be bound or the host file cannot be written
+     */
+    LoopbackRing(int n, String election) throws IOException {
+        int[] ports = new int[n];
+        for (int i = 0; i < n; i++) {
+            try (ServerSocket free = new ServerSocket(0)) {
+                ports[i] = free.getLocalPort();
+            }
+        }
+
+        File hostFile = File.createTempFile("servers", ".csv");
+        hostFile.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(hostFile)) {
+            out.println("id,host,port");
+            for (int i = 0; i < n; i++)
+                out.println((i + 1) + ",localhost," + ports[i]);
+        }
+        System.setProperty("server.hostFile", hostFile.getPath());
+        System.setProperty("server.election", election);
+
+        nodes = new ServerNode[n];
+        for (int i = 0; i < n; i++) {
+            nodes[i] = new ServerNode(i + 1, "localhost", ports[i], 1, "localhost", ports[0]);
+            nodes[i].initialiseServer();
+        }
+        for (int i = 1; i < n; i++)
+            nodes[i].start();
+    }
+
+    /**
+     * Builds the ring from the coordinator and waits for the election it triggers to produce a token.
+     */
+    void start() {
+        nodes[0].start();
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (tokenVisits() == 0)
+            waitUntil(deadline);
+    }
+
+    /**
+     * Waits for the token to next arrive at the coordinator.
+     * @return number of complete rotations seen so far
+     */
+    long awaitRotation() {
+        Histogram rotations = nodes[0].getMetrics().ringRotation;
+        long seen = rotations.getCount();
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (rotations.getCount() == seen)
+            waitUntil(deadline);
+        return seen + 1;
+    }
+
+    /**
+     * @return election messages and bytes sent by all nodes so far
+     */
+    long[] electionTraffic() {
+        long[] traffic = new long[2];
+        for (ServerNode node : nodes) {
+            traffic[0] += node.getMetrics().electionMessages.get();
+            traffic[1] += node.getMetrics().electionBytes.get();
+        }
+        return traffic;
+    }
+
+    private long tokenVisits() {
+        long visits = 0;
+        for (ServerNode node : nodes)
+            visits += node.getMetrics().tokenHold.getCount();
+        return visits;
+    }
+
+    private static void waitUntil(long deadline) {
+        if (System.nanoTime() - deadline > 0)
+            throw new IllegalStateException("Ring made no progress in " + TimeUnit.NANOSECONDS.toSeconds(TIMEOUT_NANOS) + "s.");
+        Thread.yield();
+    }
+
+    void close() {
+        for (ServerNode node : nodes)
+            node.close();
+    }
+}
@@ -0,0 +1,89 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of queueing and retrieving posts on a single node, with the recipient's mailbox held at a given size.
+ * Each invocation makes BATCH calls; after each invocation a simulated token visit commits the queued posts and
+ * deletes and puts the mailbox back to its starting size, outside the measured time.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MailboxBenchmark {
+    private static final int BATCH = 256;
+    private static final String RECIPIENT = "alice";
+
+    @Param({"1", "1000", "100000"})
+    public int mailboxSize;
+
+    private ServerNode node;
+    private PostLog log;
+    private boolean queued;
+
+    @Setup(Level.Trial)
+    public void createNode() throws IOException {
+        node = new ServerNode(1, "localhost", 0, 1, "localhost", 0);
+        log = new PostLog(1, new ArrayList<>());
+        for (int i = 0; i < mailboxSize + BATCH; i++)
+            node.addPostToQueue("bob", RECIPIENT, "message " + i, null);
+        tokenVisit();
+    }
+
+    @TearDown(Level.Trial)
+    public void closeNode() {
+        node.close();
+    }
+
+    /**
+     * Commits what the last invocation did and undoes it, leaving mailboxSize + BATCH posts in the mailbox, so
+     * that getPost never runs dry, and nothing queued.
+     */
+    @TearDown(Level.Invocation)
+    public void resetMailbox() {
+        if (queued) {
+            tokenVisit();
+            for (int i = 0; i < BATCH; i++)
+                node.getPost(RECIPIENT);
+        } else {
+            for (int i = 0; i < BATCH; i++)
+                node.addPostToQueue("bob", RECIPIENT, "message " + i, null);
+        }
+        tokenVisit();
+    }
+
+    /**
+     * Does what the node would do while holding the token, until nothing is left queued.
+     */
+    private void tokenVisit() {
+        int made;
+        do {
+            made = node.postMessages(0, log, System.nanoTime(), Integer.MAX_VALUE);
+            log.trim(1);
+        } while (made > 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void getPost(Blackhole bh) {
+        queued = false;
+        for (int i = 0; i < BATCH; i++)
+            bh.consume(node.getPost(RECIPIENT));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void addPostToQueue() {
+        queued = true;
+        for (int i = 0; i < BATCH; i++)
+            node.addPostToQueue("bob", RECIPIENT, "hello", null);
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end ring timings with every node in one process, linked over loopback.
+ */
+@Fork(1)
+public class RingBenchmark {
+    @State(Scope.Benchmark)
+    public static class RunningRing {
+        @Param({"3", "5", "8"})
+        public int nodes;
+
+        private LoopbackRing ring;
+
+        @Setup(Level.Trial)
+        public void startRing() throws IOException {
+            ring = new LoopbackRing(nodes, "chang-roberts");
+            ring.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void closeRing() {
+            ring.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class NewRing {
+        @Param({"3", "5", "8", "32"})
+        public int nodes;
+
+        @Param({"classic", "chang-roberts", "hirschberg-sinclair"})
+        public String election;
+
+        private LoopbackRing ring;
+
+        @Setup(Level.Iteration)
+        public void createRing() throws IOException {
+            ring = new LoopbackRing(nodes, election);
+        }
+
+        @TearDown(Level.Iteration)
+        public void closeRing() {
+            ring.close();
+        }
+    }
+
+    /**
+     * Time for the token to go once round an idle ring.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3, time = 1)
+    @Measurement(iterations = 5, time = 2)
+    public long tokenRotation(RunningRing state) {
+        return state.ring.awaitRotation();
+    }
+
+    /**
+     * Election messages and bytes sent, reported alongside electionConvergence.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ElectionTraffic {
+        public long messages;
+        public long bytes;
+    }
+
+    /**
+     * Time from the coordinator starting ring construction until the election it triggers has converged and the
+     * token has first been passed. Elections here only start on ring completion, so construction is included.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public void electionConvergence(NewRing state, ElectionTraffic traffic) {
+        state.ring.start();
+        long[] sent = state.ring.electionTraffic();
+        traffic.messages = sent[0];
+        traffic.bytes = sent[1];
+    }
+}
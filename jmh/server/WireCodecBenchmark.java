@@ -0,0 +1,107 @@
+package server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of ring messages, in both the binary and the text wire formats. Token frames carry a
+ * log with the given number of changes; election frames carry the given number of IDs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireCodecBenchmark {
+    @Param({"0", "16", "256"})
+    public int changes;
+
+    private Frame token;
+    private Frame election;
+    private ByteBuffer buffer;
+    private ByteBuffer encodedToken;
+    private ByteBuffer encodedElection;
+    private String tokenCommand;
+    private String tokenPayload;
+    private String electionCommand;
+    private String electionPayload;
+
+    @Setup
+    public void createFrames() {
+        PostLog log = new PostLog();
+        for (int i = 0; i < changes; i++) {
+            if (i % 4 == 3)
+                log.appendDelete(1, i);
+            else
+                log.appendInsert(1, new Post("bob", "alice", "message number " + i));
+        }
+        token = Frame.token(0, 0, 0, 0, log);
+
+        int[] ids = new int[Math.max(1, changes)];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = i + 1;
+        election = Frame.election(ids);
+
+        buffer = ByteBuffer.allocate(WireCodec.encodedSize(token) + WireCodec.encodedSize(election));
+        encodedToken = encode(token);
+        encodedElection = encode(election);
+        tokenCommand = token.getCommand();
+        tokenPayload = token.getPayload();
+        electionCommand = election.getCommand();
+        electionPayload = election.getPayload();
+    }
+
+    private static ByteBuffer encode(Frame frame) {
+        ByteBuffer encoded = ByteBuffer.allocate(WireCodec.encodedSize(frame));
+        WireCodec.encode(frame, encoded);
+        encoded.flip();
+        return encoded;
+    }
+
+    @Benchmark
+    public ByteBuffer encodeToken() {
+        buffer.clear();
+        WireCodec.encode(token, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Frame decodeToken() {
+        return WireCodec.decode(encodedToken.duplicate());
+    }
+
+    @Benchmark
+    public ByteBuffer encodeElection() {
+        buffer.clear();
+        WireCodec.encode(election, buffer);
+        return buffer;
+    }
+
+    @Benchmark
+    public Frame decodeElection() {
+        return WireCodec.decode(encodedElection.duplicate());
+    }
+
+    @Benchmark
+    public String encodeTokenText() {
+        return token.getCommand() + "\n" + token.getPayload() + "\n";
+    }
+
+    @Benchmark
+    public Frame decodeTokenText() {
+        return Frame.fromText(tokenCommand, tokenPayload);
+    }
+
+    @Benchmark
+    public String encodeElectionText() {
+        return election.getCommand() + "\n" + election.getPayload() + "\n";
+    }
+
+    @Benchmark
+    public Frame decodeElectionText() {
+        return Frame.fromText(electionCommand, electionPayload);
+    }
+}
@@ -1,54 +1,34 @@
 package client;
 
-import com.opencsv.CSVReader;
-import com.opencsv.CSVReaderBuilder;
+import server.AsyncLogger;
 import server.Node;
 
 import java.io.*;
 import java.net.Socket;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.Scanner;
 
 public class Client {
     private static ArrayList<Node> nodes = new ArrayList<>();
     private static final String HOST_FILE = "servers.csv";
     private static String loggerFileName;
-    private static PrintWriter logger;
-
-    private static String getTimestamp() {
-        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-        Date date = new Date();
-        return "[" + dateFormat.format(date) + "] ";
-    }
+    private static AsyncLogger logger;
 
     public static void main(String[] args) {
         try {
             Scanner input = new Scanner(System.in);
-            System.out.println("Send or Receive? (S or R)");
+            System.out.println("Send, Receive, send Many or Watch? (S, R, M or W)");
             String choice = input.nextLine().toUpperCase();
 
             System.out.println("What is your name?");
             String name = input.nextLine();
             loggerFileName = "Client" + name + "Log.log";
 
-            logger = new PrintWriter(new FileWriter(loggerFileName), true);
-            logger.println(getTimestamp() + "New client created.");
-
-            logger.println(getTimestamp() + "Getting all registered servers.");
-            FileReader fr = new FileReader(HOST_FILE);
-            CSVReader csvReader = new CSVReaderBuilder(fr).withSkipLines(1).build();
-            String[] nextRecord;
+            logger = new AsyncLogger(loggerFileName, AsyncLogger.levelFromProperty());
+            logger.info("New client created.");
 
-            while ((nextRecord = csvReader.readNext()) != null) {
-                int id = Integer.parseInt(nextRecord[0]);
-                String host = nextRecord[1];
-                int port = Integer.parseInt(nextRecord[2]);
-
-                nodes.add(new Node(id, host, port));
-            }
+            logger.info("Getting all registered servers.");
+            nodes.addAll(RingClient.readHostFile(HOST_FILE));
 
             boolean serverFound = false;
             int serverID;
@@ -57,16 +37,17 @@ public class Client {
             while (!serverFound) {
                 System.out.println("What server would you like to connect to?");
                 serverID = input.nextInt();
+                input.nextLine();
                 for (Node node : nodes) {
                     if (node.getId() == serverID) {
-                        logger.println(getTimestamp() + "Found server.");
+                        logger.info("Found server.");
                         serverHost = node.getHost();
                         serverPort = node.getPort();
                         serverFound = true;
                     }
                 }
                 if (!serverFound) {
-                    logger.println(getTimestamp() + "Invalid server ID given.");
+                    logger.info("Invalid server ID given.");
                     System.out.println("Could not find server, please try again");
                 }
             }
@@ -75,16 +56,63 @@ public class Client {
             BufferedReader inFromServer = new BufferedReader(new InputStreamReader(server.getInputStream()));
             PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(server.getOutputStream()), true);
 
-            if (choice.equals("S")) {
+            if (choice.equals("M")) {
+                System.out.println("Who would you like to send messages to?");
+                String recipient = input.nextLine();
+                logger.info("Read recipient.");
+
+                System.out.println("Enter one message per line, then an empty line to send them all.");
+                ArrayList<String> posts = new ArrayList<>();
+                String post;
+                while (input.hasNextLine() && !(post = input.nextLine()).isEmpty())
+                    posts.add(post);
+                logger.info(posts.size() + " posts read.");
+
+                logger.info("Streaming posts...");
+                outToServer.println("POST STREAM COMMITTED");
+                String msg = inFromServer.readLine();
+
+                if (msg.equals("OK")) {
+                    for (int seq = 0; seq < posts.size(); seq++) {
+                        outToServer.println(seq);
+                        outToServer.println(name);
+                        outToServer.println(recipient);
+                        outToServer.println(posts.get(seq));
+                    }
+
+                    int acked = 0;
+                    while (acked < posts.size() && (msg = inFromServer.readLine()) != null) {
+                        if (msg.startsWith("ACK ")) {
+                            acked++;
+                        } else if (msg.startsWith("BUSY ")) {
+                            // server queue is full, send the post again once it says it will have room
+                            String[] busy = msg.split(" ");
+                            int seq = Integer.parseInt(busy[1]);
+                            logger.info("Server busy, retrying post " + seq + " in " + busy[2] + "ms.");
+                            try {
+                                Thread.sleep(Long.parseLong(busy[2]));
+                            } catch (InterruptedException e) {
+                                break;
+                            }
+                            outToServer.println(seq);
+                            outToServer.println(name);
+                            outToServer.println(recipient);
+                            outToServer.println(posts.get(seq));
+                        }
+                    }
+                    logger.info(acked + " posts committed.");
+                    System.out.println(acked + " of " + posts.size() + " messages committed.");
+                }
+            } else if (choice.equals("S")) {
                 System.out.println("Who would you like to send a message to?");
                 String recipient = input.nextLine();
-                logger.println(getTimestamp() + "Read recipient.");
+                logger.info("Read recipient.");
 
                 System.out.println("What is the message you would like to send?");
                 String post = input.nextLine();
-                logger.println(getTimestamp() + "Post read.");
+                logger.info("Post read.");
 
-                logger.println(getTimestamp() + "Posting...");
+                logger.info("Posting...");
                 outToServer.println("POST");
                 String msg = inFromServer.readLine();
 
@@ -92,34 +120,84 @@ public class Client {
                     outToServer.println(name);
                     outToServer.println(recipient);
                     outToServer.println(post);
+
+                    String reply = inFromServer.readLine();
+                    if (reply != null && reply.startsWith("BUSY ")) {
+                        logger.info("Server busy.");
+                        System.out.println("Server is busy, please try again in " + reply.substring(5) + "ms.");
+                    }
                 }
-            } else {
-                outToServer.println("PULL");
+            } else if (choice.equals("W")) {
+                logger.info("Subscribing...");
+                outToServer.println("SUBSCRIBE");
                 String msg = inFromServer.readLine();
 
                 if (msg.equals("OK")) {
                     outToServer.println(name);
-                    String incoming = inFromServer.readLine();
-
-                    if (incoming.equals("INCOMING")) {
-                        String post = inFromServer.readLine();
-                        String sender = inFromServer.readLine();
-                        System.out.println("Message received from " + sender + "\n\"" + post + "\"");
-                    } else {
-                        System.out.println("No messages for you have been found.");
+                    System.out.println("Waiting for messages, press Ctrl-C to stop.");
+                    String incoming;
+                    while ((incoming = inFromServer.readLine()) != null) {
+                        if (!incoming.startsWith("INCOMING "))
+                            continue;
+                        int received = Integer.parseInt(incoming.substring(9));
+                        logger.info(received + " messages received.");
+                        for (int i = 0; i < received; i++) {
+                            String post = inFromServer.readLine();
+                            String sender = inFromServer.readLine();
+                            System.out.println("Message received from " + sender + "\n\"" + post + "\"");
+                        }
+                    }
+                }
+            } else {
+                System.out.println("How many messages would you like to receive? (a number, or ALL)");
+                String count = input.nextLine().trim().toUpperCase();
+
+                if (!count.isEmpty() && !count.equals("1")) {
+                    logger.info("Pulling " + count + " messages...");
+                    outToServer.println("PULL " + count);
+                    String msg = inFromServer.readLine();
+
+                    if (msg.equals("OK")) {
+                        outToServer.println(name);
+                        String incoming = inFromServer.readLine();
+
+                        if (incoming.startsWith("INCOMING ")) {
+                            int received = Integer.parseInt(incoming.substring(9));
+                            logger.info(received + " messages received.");
+                            for (int i = 0; i < received; i++) {
+                                String post = inFromServer.readLine();
+                                String sender = inFromServer.readLine();
+                                System.out.println("Message received from " + sender + "\n\"" + post + "\"");
+                            }
+                        } else {
+                            System.out.println("No messages for you have been found.");
+                        }
+                    }
+                } else {
+                    outToServer.println("PULL");
+                    String msg = inFromServer.readLine();
+
+                    if (msg.equals("OK")) {
+                        outToServer.println(name);
+                        String incoming = inFromServer.readLine();
+
+                        if (incoming.equals("INCOMING")) {
+                            String post = inFromServer.readLine();
+                            String sender = inFromServer.readLine();
+                            System.out.println("Message received from " + sender + "\n\"" + post + "\"");
+                        } else {
+                            System.out.println("No messages for you have been found.");
+                        }
                     }
                 }
             }
 
         } catch (FileNotFoundException e) {
-            logger.println(getTimestamp() + "ERROR could not find file.");
+            logger.error("ERROR could not find file.");
             e.printStackTrace();
         } catch (IOException e) {
-            logger.println(getTimestamp() + "ERROR IO Exception.");
+            logger.error("ERROR IO Exception.");
             e.printStackTrace();
         }
-
-        System.out.println("What node would you like to connect to? ");
-
     }
 }
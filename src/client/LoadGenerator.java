@@ -0,0 +1,462 @@
+package client;
+
+import server.AsyncLogger;
+import server.Histogram;
+import server.Node;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Non-interactive load generator. Virtual senders stream posts to the ring and virtual receivers pull them back
+ * out, spread over the chosen nodes, and the throughput and latency seen are reported at the end.
+ * Each post carries the time it was meant to be sent, so commit latency (until the server acknowledges it as
+ * committed) and delivery latency (until a receiver pulls it) are measured from then. In open loop, that means a
+ * server that falls behind shows up as latency instead of quietly slowing the senders down.
+ */
+public class LoadGenerator {
+    private final List<Node> targets;
+    private final int senders;
+    private final int receivers;
+    private final double rate;
+    private final int window;
+    private final SizeDistribution sizes;
+    private final long durationNanos;
+    private final long warmupNanos;
+    private final long drainNanos;
+    private final long pollMs;
+    private final boolean subscribe;
+    private final Set<Socket> subscriptions = ConcurrentHashMap.newKeySet();
+    private final AsyncLogger logger;
+
+    private final Histogram commitLatency = new Histogram();
+    private final Histogram deliveryLatency = new Histogram();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong busy = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private long started;
+    private volatile boolean receiving = true;
+
+    /**
+     * Sizes of post bodies, in characters.
+     */
+    static class SizeDistribution {
+        private final String spec;
+        private final String kind;
+        private final int a;
+        private final int b;
+
+        /**
+         * @param spec fixed:N, uniform:MIN-MAX or exponential:MEAN
+         */
+        SizeDistribution(String spec) {
+            this.spec = spec;
+            String[] split = spec.split(":", 2);
+            kind = split[0].toLowerCase();
+            String[] bounds = split.length > 1 ? split[1].split("-") : new String[]{"64"};
+            a = Integer.parseInt(bounds[0]);
+            b = bounds.length > 1 ? Integer.parseInt(bounds[1]) : a;
+            if (!kind.equals("fixed") && !kind.equals("uniform") && !kind.equals("exponential"))
+                throw new IllegalArgumentException("Unknown size distribution: " + spec);
+        }
+
+        int next(Random random) {
+            switch (kind) {
+                case "uniform":
+                    return a + random.nextInt(Math.max(1, b - a + 1));
+                case "exponential":
+                    return (int) Math.min(Integer.MAX_VALUE / 2, Math.round(-a * Math.log(1 - random.nextDouble())));
+                default:
+                    return a;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return spec;
+        }
+    }
+
+    /**
+     * LoadGenerator constructor
+     * @param targets nodes to connect to, senders and receivers are spread over them in turn
+     * @param senders number of virtual senders, each with its own stream connection
+     * @param receivers number of virtual receivers, each polling its own mailbox
+     * @param rate posts per second across all senders, or 0 for closed loop
+     * @param window posts each sender may have waiting for commit at once, in closed loop
+     * @param sizes sizes of post bodies
+     * @param durationSec how long to send for
+     * @param warmupSec how long to send for before recording
+     * @param drainSec how long to wait for outstanding posts once sending stops
+     * @param pollMs how long a receiver waits after finding its mailbox empty
+     * @param subscribe true for receivers to subscribe to their mailboxes instead of polling them
+     * @throws IOException if the log file cannot be opened
+     */
+    public LoadGenerator(List<Node> targets, int senders, int receivers, double rate, int window,
+                         SizeDistribution sizes, double durationSec, double warmupSec, double drainSec, long pollMs,
+                         boolean subscribe)
+            throws IOException {
+        this.targets = targets;
+        this.senders = senders;
+        this.receivers = receivers;
+        this.rate = rate;
+        this.window = window;
+        this.sizes = sizes;
+        this.durationNanos = (long) (durationSec * 1e9);
+        this.warmupNanos = (long) (warmupSec * 1e9);
+        this.drainNanos = (long) (drainSec * 1e9);
+        this.pollMs = pollMs;
+        this.subscribe = subscribe;
+        logger = new AsyncLogger("LoadGeneratorLog.log", AsyncLogger.levelFromProperty());
+    }
+
+    /**
+     * Runs the load and prints the report.
+     * @throws InterruptedException if interrupted while waiting for the load to finish
+     */
+    public void run() throws InterruptedException {
+        logger.info("Starting load: " + describe());
+        System.out.println("Load: " + describe());
+        started = System.nanoTime();
+
+        ArrayList<Thread> senderThreads = new ArrayList<>();
+        for (int i = 0; i < senders; i++)
+            senderThreads.add(start("sender-" + i, this::runSender, i));
+        ArrayList<Thread> receiverThreads = new ArrayList<>();
+        for (int i = 0; i < receivers; i++)
+            receiverThreads.add(start("receiver-" + i, this::runReceiver, i));
+
+        for (Thread thread : senderThreads)
+            thread.join();
+        long drainDeadline = System.nanoTime() + drainNanos;
+        while (receivers > 0 && delivered.get() < committed.get() && System.nanoTime() - drainDeadline < 0)
+            Thread.sleep(10);
+        receiving = false;
+        for (Socket socket : subscriptions) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Thread thread : receiverThreads)
+            thread.join();
+
+        report();
+        logger.close();
+    }
+
+    private interface Role {
+        void run(int index) throws IOException, InterruptedException;
+    }
+
+    private Thread start(String name, Role role, int index) {
+        Thread thread = new Thread(() -> {
+            try {
+                role.run(index);
+            } catch (IOException | InterruptedException e) {
+                errors.incrementAndGet();
+                logger.error("ERROR " + Thread.currentThread().getName() + ": " + e);
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(senders).append(" senders, ").append(receivers).append(" receivers, ");
+        if (rate > 0)
+            sb.append("open loop at ").append(rate).append(" posts/s");
+        else
+            sb.append("closed loop with window ").append(window);
+        if (subscribe)
+            sb.append(", subscribing receivers");
+        sb.append(", sizes ").append(sizes).append(", ").append(durationNanos / 1e9).append("s against nodes");
+        for (Node node : targets)
+            sb.append(' ').append(node.getId());
+        return sb.toString();
+    }
+
+    /**
+     * @param intended System.nanoTime() at which a post was meant to be sent
+     * @return true if the post was meant to be sent after the warmup, so should be recorded
+     */
+    private boolean measured(long intended) {
+        return intended - started >= warmupNanos;
+    }
+
+    /**
+     * One virtual sender. Streams posts to random receivers over one connection, asking for each to be
+     * acknowledged once committed. In open loop, posts are sent on a fixed schedule whatever the server does;
+     * in closed loop, a new post is only sent once one of the last window has been acknowledged.
+     * @param index index of sender
+     */
+    private void runSender(int index) throws IOException, InterruptedException {
+        Node node = targets.get(index % targets.size());
+        String name = "load-s" + index;
+        Random random = new Random(index);
+        ConcurrentHashMap<Long, Long> inFlight = new ConcurrentHashMap<>();
+        Semaphore permits = new Semaphore(window);
+
+        try (Socket socket = new Socket(node.getHost(), node.getPort())) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
+            out.println("POST STREAM COMMITTED");
+            out.flush();
+            if (!"OK".equals(in.readLine()))
+                throw new IOException("Server " + node.getId() + " refused stream");
+
+            Thread acks = new Thread(() -> readAcks(in, inFlight, permits), "acks-" + index);
+            acks.start();
+
+            long interval = rate > 0 ? (long) (1e9 * senders / rate) : 0;
+            long deadline = started + durationNanos;
+            long next = started + (interval > 0 ? random.nextInt((int) Math.min(interval, Integer.MAX_VALUE)) : 0);
+            long seq = 0;
+            while (System.nanoTime() - deadline < 0) {
+                long intended;
+                if (interval > 0) {
+                    long wait = next - System.nanoTime();
+                    if (wait > 0)
+                        LockSupport.parkNanos(wait);
+                    intended = next;
+                    next += interval;
+                } else {
+                    if (!permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                        break;
+                    intended = System.nanoTime();
+                }
+
+                inFlight.put(seq, intended);
+                out.println(seq);
+                out.println(name);
+                out.println("load-r" + random.nextInt(Math.max(1, receivers)));
+                out.println(body(intended, sizes.next(random)));
+                out.flush();
+                sent.incrementAndGet();
+                seq++;
+            }
+
+            long drainDeadline = System.nanoTime() + drainNanos;
+            while (!inFlight.isEmpty() && System.nanoTime() - drainDeadline < 0)
+                Thread.sleep(10);
+            if (!inFlight.isEmpty())
+                logger.error("ERROR " + inFlight.size() + " posts from " + name + " never acknowledged.");
+            // ends the ack reader; the socket itself is closed with the try block
+            socket.shutdownInput();
+            acks.join();
+        }
+    }
+
+    /**
+     * Reads a sender's acknowledgements until its connection closes. A post turned away as BUSY is not retried,
+     * so that the offered load stays what was asked for, but in closed loop the sender backs off for the
+     * retry-after the server gave.
+     */
+    private void readAcks(BufferedReader in, ConcurrentHashMap<Long, Long> inFlight, Semaphore permits) {
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                long now = System.nanoTime();
+                String[] split = line.split(" ");
+                if (split[0].equals("ACK")) {
+                    Long intended = inFlight.remove(Long.parseLong(split[1]));
+                    if (intended != null && measured(intended)) {
+                        committed.incrementAndGet();
+                        commitLatency.record(now - intended);
+                    }
+                    if (rate <= 0)
+                        permits.release();
+                } else if (split[0].equals("BUSY")) {
+                    Long intended = inFlight.remove(Long.parseLong(split[1]));
+                    if (intended != null && measured(intended))
+                        busy.incrementAndGet();
+                    if (rate <= 0) {
+                        Thread.sleep(Long.parseLong(split[2]));
+                        permits.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // connection closed once the sender has finished
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param intended System.nanoTime() at which the post was meant to be sent
+     * @param size length of body
+     * @return post body starting with the intended send time, padded to size
+     */
+    private static String body(long intended, int size) {
+        StringBuilder sb = new StringBuilder(Math.max(size, 24));
+        sb.append(intended).append(' ');
+        while (sb.length() < size)
+            sb.append('x');
+        return sb.toString();
+    }
+
+    /**
+     * One virtual receiver. Pulls everything in its mailbox, over and over, until told to stop.
+     * @param index index of receiver
+     */
+    private void runReceiver(int index) throws IOException, InterruptedException {
+        Node node = targets.get(index % targets.size());
+        String name = "load-r" + index;
+        if (subscribe) {
+            runSubscriber(node, name);
+            return;
+        }
+
+        while (receiving) {
+            int received = 0;
+            try (Socket socket = new Socket(node.getHost(), node.getPort())) {
+                socket.setTcpNoDelay(true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), false);
+                out.println("PULL ALL");
+                out.flush();
+                if (!"OK".equals(in.readLine()))
+                    throw new IOException("Server " + node.getId() + " refused pull");
+                out.println(name);
+                out.flush();
+
+                String incoming = in.readLine();
+                if (incoming != null && incoming.startsWith("INCOMING ")) {
+                    received = Integer.parseInt(incoming.substring(9));
+                    for (int i = 0; i < received; i++) {
+                        String post = in.readLine();
+                        in.readLine();
+                        long now = System.nanoTime();
+                        long intended = Long.parseLong(post.substring(0, post.indexOf(' ')));
+                        if (measured(intended)) {
+                            delivered.incrementAndGet();
+                            deliveryLatency.record(now - intended);
+                        }
+                    }
+                }
+            }
+            if (received == 0)
+                Thread.sleep(pollMs);
+        }
+    }
+
+    /**
+     * Receives posts pushed down one subscription until the connection is closed at the end of the run.
+     * @param node node to subscribe at
+     * @param name recipient to subscribe to
+     */
+    private void runSubscriber(Node node, String name) throws IOException {
+        try (Socket socket = new Socket(node.getHost(), node.getPort())) {
+            subscriptions.add(socket);
+            if (!receiving)
+                return;
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), false);
+            out.println("SUBSCRIBE");
+            out.flush();
+            if (!"OK".equals(in.readLine()))
+                throw new IOException("Server " + node.getId() + " refused subscription");
+            out.println(name);
+            out.flush();
+
+            String incoming;
+            while ((incoming = in.readLine()) != null) {
+                if (!incoming.startsWith("INCOMING "))
+                    continue;
+                int received = Integer.parseInt(incoming.substring(9));
+                for (int i = 0; i < received; i++) {
+                    String post = in.readLine();
+                    in.readLine();
+                    long now = System.nanoTime();
+                    long intended = Long.parseLong(post.substring(0, post.indexOf(' ')));
+                    if (measured(intended)) {
+                        delivered.incrementAndGet();
+                        deliveryLatency.record(now - intended);
+                    }
+                }
+            }
+        } catch (SocketException e) {
+            if (receiving)
+                throw e;
+        }
+    }
+
+    private void report() {
+        double seconds = Math.max(1e-9, (durationNanos - warmupNanos) / 1e9);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("sent %d, committed %d, busy %d, delivered %d, errors %d%n",
+                sent.get(), committed.get(), busy.get(), delivered.get(), errors.get()));
+        sb.append(String.format("commit throughput %.1f posts/s, delivery throughput %.1f posts/s%n",
+                committed.get() / seconds, delivered.get() / seconds));
+        appendLatency(sb, "commit latency", commitLatency);
+        appendLatency(sb, "delivery latency", deliveryLatency);
+        System.out.print(sb);
+        logger.info(sb.toString().trim());
+    }
+
+    private static void appendLatency(StringBuilder sb, String name, Histogram histogram) {
+        sb.append(String.format("%s ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n", name,
+                histogram.getValueAtQuantile(0.5) / 1e6, histogram.getValueAtQuantile(0.9) / 1e6,
+                histogram.getValueAtQuantile(0.99) / 1e6, histogram.getValueAtQuantile(0.999) / 1e6,
+                histogram.getMax() / 1e6));
+    }
+
+    /**
+     * Main method
+     * @param args unused. Configured with -Dload.senders and -Dload.receivers (virtual senders and receivers,
+     *             4 each by default), -Dload.nodes (comma separated IDs from the host file to spread them over, all
+     *             by default), -Dload.hostFile (servers.csv by default), -Dload.size (post body sizes: fixed:N,
+     *             uniform:MIN-MAX or exponential:MEAN, fixed:64 by default), -Dload.rate (posts per second across
+     *             all senders for open loop; 0, the default, runs closed loop with -Dload.window posts outstanding
+     *             per sender), -Dload.durationSec, -Dload.warmupSec (sent but not recorded), -Dload.drainSec (how
+     *             long to wait for outstanding posts at the end), -Dload.pollMs (receiver wait after an empty
+     *             mailbox) and -Dload.subscribe (true for receivers to SUBSCRIBE instead of polling with PULL).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<Node> nodes = RingClient.readHostFile(System.getProperty("load.hostFile", "servers.csv"));
+        String ids = System.getProperty("load.nodes", "");
+        List<Node> targets = new ArrayList<>();
+        if (ids.isEmpty()) {
+            targets.addAll(nodes);
+        } else {
+            List<String> wanted = Arrays.asList(ids.split(","));
+            for (Node node : nodes) {
+                if (wanted.contains(String.valueOf(node.getId())))
+                    targets.add(node);
+            }
+        }
+        if (targets.isEmpty()) {
+            System.out.println("No nodes to send to.");
+            System.exit(-1);
+        }
+
+        new LoadGenerator(targets,
+                Integer.getInteger("load.senders", 4),
+                Integer.getInteger("load.receivers", 4),
+                Double.parseDouble(System.getProperty("load.rate", "0")),
+                Math.max(1, Integer.getInteger("load.window", 8)),
+                new SizeDistribution(System.getProperty("load.size", "fixed:64")),
+                Double.parseDouble(System.getProperty("load.durationSec", "10")),
+                Double.parseDouble(System.getProperty("load.warmupSec", "1")),
+                Double.parseDouble(System.getProperty("load.drainSec", "5")),
+                Long.getLong("load.pollMs", 5),
+                Boolean.getBoolean("load.subscribe")).run();
+    }
+}
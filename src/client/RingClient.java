@@ -0,0 +1,431 @@
+package client;
+
+import com.opencsv.CSVReader;
+import com.opencsv.CSVReaderBuilder;
+import server.Node;
+import server.Post;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous client for the ring, for applications that post and pull at high rates. Keeps a pool of persistent
+ * connections to each node: posts go down POST STREAM COMMITTED connections and complete once the server has
+ * committed them, pulls go down PULL STREAM connections. Requests are pipelined, so one connection carries many at
+ * once, and replies are matched back up by sequence number on a reader thread per connection.
+ * Each post goes to the node with the fewest requests in flight, ties going to the one with the lowest recent
+ * round trip time. Pulls for a recipient all go to one node picked by hashing the recipient, falling back to the
+ * least loaded node only while that one cannot be reached. Posts taken by a pull are deleted on the other nodes only
+ * once the ring carries the delete round, so spreading one recipient's pulls over several nodes could return a post
+ * twice. Pinning narrows that to a fail over, at the cost of not spreading a busy recipient's pulls over the ring.
+ * A node that refuses a connection, or does not answer the stream handshake in time, is skipped for a while and the
+ * request tried on the next one.
+ * Posts turned away with BUSY are sent again once the server says it will have room. A request already sent down a
+ * connection that breaks fails with an IOException, since the server may or may not have made it.
+ * Safe to use from any number of threads.
+ */
+public class RingClient implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 1000;
+    private static final long DOWN_MS = 1000;
+
+    private final List<NodePool> pools = new ArrayList<>();
+    private final int connectionsPerNode;
+    private final ScheduledExecutorService retries;
+    private volatile boolean closed = false;
+
+    /**
+     * Request waiting for a reply. Exactly one of committed and pulled is set.
+     */
+    private static class Request {
+        private final String sender;
+        private final String recipient;
+        private final String body;
+        private final int limit;
+        private final CompletableFuture<Void> committed;
+        private final CompletableFuture<List<Post>> pulled;
+        private long sentAt;
+
+        private Request(String sender, String recipient, String body) {
+            this.sender = sender;
+            this.recipient = recipient;
+            this.body = body;
+            this.limit = 0;
+            this.committed = new CompletableFuture<>();
+            this.pulled = null;
+        }
+
+        private Request(String recipient, int limit) {
+            this.sender = null;
+            this.recipient = recipient;
+            this.body = null;
+            this.limit = limit;
+            this.committed = null;
+            this.pulled = new CompletableFuture<>();
+        }
+
+        private boolean isPost() {
+            return committed != null;
+        }
+
+        private void fail(Throwable cause) {
+            if (isPost())
+                committed.completeExceptionally(cause);
+            else
+                pulled.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Connections to one node, and how busy and how far away it looks.
+     */
+    private class NodePool {
+        private final Node node;
+        private final Connection[] postConnections;
+        private final Connection[] pullConnections;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long rttNanos = 0;
+        private volatile long downUntil = 0;
+
+        private NodePool(Node node) {
+            this.node = node;
+            postConnections = new Connection[connectionsPerNode];
+            pullConnections = new Connection[connectionsPerNode];
+        }
+
+        /**
+         * Picks one of this node's connections in turn, opening it first if it is not open yet or has broken.
+         * @param post true for a post connection, false for a pull connection
+         * @return open connection
+         * @throws IOException if the node cannot be reached
+         */
+        private Connection connection(boolean post) throws IOException {
+            Connection[] connections = post ? postConnections : pullConnections;
+            int slot = Math.floorMod(next.getAndIncrement(), connections.length);
+            synchronized (connections) {
+                Connection connection = connections[slot];
+                if (connection == null || connection.broken) {
+                    connection = new Connection(this, post);
+                    connections[slot] = connection;
+                }
+                return connection;
+            }
+        }
+
+        private boolean isDown(long now) {
+            return now - downUntil < 0;
+        }
+
+        private void markDown() {
+            downUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DOWN_MS);
+        }
+
+        private void completed(Request request) {
+            inFlight.decrementAndGet();
+            long rtt = System.nanoTime() - request.sentAt;
+            long previous = rttNanos;
+            rttNanos = previous == 0 ? rtt : previous - previous / 8 + rtt / 8;
+        }
+
+        private void close() {
+            for (Connection[] connections : List.of(postConnections, pullConnections)) {
+                synchronized (connections) {
+                    for (Connection connection : connections) {
+                        if (connection != null)
+                            connection.close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One persistent stream connection to a node.
+     */
+    private class Connection {
+        private final NodePool pool;
+        private final boolean posting;
+        private final Socket socket;
+        private final BufferedReader in;
+        private final PrintWriter out;
+        private final ConcurrentHashMap<Long, Request> pending = new ConcurrentHashMap<>();
+        private final AtomicLong nextSeq = new AtomicLong();
+        private volatile boolean broken = false;
+
+        private Connection(NodePool pool, boolean posting) throws IOException {
+            this.pool = pool;
+            this.posting = posting;
+            Node node = pool.node;
+            socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(node.getHost(), node.getPort()), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), false);
+                out.println(posting ? "POST STREAM COMMITTED" : "PULL STREAM");
+                out.flush();
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                String reply = in.readLine();
+                if (!"OK".equals(reply))
+                    throw new IOException("Server " + node.getId() + " refused stream: " + reply);
+                // replies to a pull can be a long time coming, so only the handshake is timed
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+
+            Thread reader = new Thread(this::readReplies, "ring-client-" + node.getId());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Writes a request. Its reply is picked up by the reader thread.
+         * @param request request to send
+         */
+        private void send(Request request) {
+            long seq = nextSeq.getAndIncrement();
+            request.sentAt = System.nanoTime();
+            pending.put(seq, request);
+            synchronized (out) {
+                out.println(seq);
+                if (posting) {
+                    out.println(request.sender);
+                    out.println(request.recipient);
+                    out.println(request.body);
+                } else {
+                    out.println(request.recipient);
+                    out.println(request.limit == Integer.MAX_VALUE ? "ALL" : String.valueOf(request.limit));
+                }
+                out.flush();
+            }
+            // the reader may have given up on the connection before the request was in pending
+            if ((broken || out.checkError()) && pending.remove(seq) != null) {
+                pool.inFlight.decrementAndGet();
+                request.fail(new IOException("Connection to Server " + pool.node.getId() + " lost."));
+            }
+        }
+
+        private void readReplies() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] reply = line.split(" ");
+                    if (line.startsWith("ACK ")) {
+                        Request request = pending.remove(Long.parseLong(reply[1]));
+                        if (request != null) {
+                            pool.completed(request);
+                            request.committed.complete(null);
+                        }
+                    } else if (line.startsWith("BUSY ")) {
+                        Request request = pending.remove(Long.parseLong(reply[1]));
+                        if (request != null) {
+                            pool.inFlight.decrementAndGet();
+                            retry(request, Long.parseLong(reply[2]));
+                        }
+                    } else if (line.startsWith("INCOMING ")) {
+                        Request request = pending.remove(Long.parseLong(reply[1]));
+                        int count = Integer.parseInt(reply[2]);
+                        ArrayList<Post> posts = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            String post = in.readLine();
+                            String sender = in.readLine();
+                            if (sender == null)
+                                throw new EOFException();
+                            posts.add(new Post(sender, request == null ? null : request.recipient, post));
+                        }
+                        if (request != null) {
+                            pool.completed(request);
+                            request.pulled.complete(posts);
+                        }
+                    } else if (line.startsWith("NO MESSAGES ")) {
+                        Request request = pending.remove(Long.parseLong(reply[2]));
+                        if (request != null) {
+                            pool.completed(request);
+                            request.pulled.complete(new ArrayList<>());
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException ignored) {
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Closes the connection and fails every request still waiting on it.
+         */
+        private void close() {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            for (Long seq : pending.keySet()) {
+                Request request = pending.remove(seq);
+                if (request != null) {
+                    pool.inFlight.decrementAndGet();
+                    request.fail(new IOException("Connection to Server " + pool.node.getId() + " lost."));
+                }
+            }
+        }
+    }
+
+    /**
+     * RingClient constructor
+     * @param nodes nodes of the ring
+     * @param connectionsPerNode connections of each kind to keep open to each node
+     */
+    public RingClient(List<Node> nodes, int connectionsPerNode) {
+        this.connectionsPerNode = Math.max(1, connectionsPerNode);
+        for (Node node : nodes)
+            pools.add(new NodePool(node));
+        retries = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ring-client-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a client for the nodes in a host file, with two connections of each kind per node.
+     * @param hostFile path of host file
+     * @return client
+     * @throws IOException if the host file cannot be read
+     */
+    public static RingClient fromHostFile(String hostFile) throws IOException {
+        return new RingClient(readHostFile(hostFile), 2);
+    }
+
+    /**
+     * Reads the host file.
+     * @param hostFile path of host file
+     * @return nodes in host file order
+     * @throws IOException if the file cannot be read
+     */
+    public static List<Node> readHostFile(String hostFile) throws IOException {
+        ArrayList<Node> nodes = new ArrayList<>();
+        try (CSVReader csvReader = new CSVReaderBuilder(new FileReader(hostFile)).withSkipLines(1).build()) {
+            String[] nextRecord;
+            while ((nextRecord = csvReader.readNext()) != null)
+                nodes.add(new Node(Integer.parseInt(nextRecord[0]), nextRecord[1], Integer.parseInt(nextRecord[2])));
+        }
+        return nodes;
+    }
+
+    /**
+     * Sends a post.
+     * @param sender sender of post
+     * @param recipient recipient of post
+     * @param post message within the post, on one line
+     * @return completes once the post has been committed to the ring
+     */
+    public CompletableFuture<Void> post(String sender, String recipient, String post) {
+        Request request = new Request(sender, recipient, post);
+        submit(request);
+        return request.committed;
+    }
+
+    /**
+     * Takes posts for a recipient out of the ring, oldest first.
+     * @param recipient recipient of posts
+     * @param max most posts to take, or Integer.MAX_VALUE for all of them
+     * @return completes with the posts taken, empty if there were none
+     */
+    public CompletableFuture<List<Post>> pull(String recipient, int max) {
+        Request request = new Request(recipient, max);
+        submit(request);
+        return request.pulled;
+    }
+
+    /**
+     * Sends a request to the first node in candidates that can be reached. Connecting, the first time a node is used
+     * or after a connection has broken, is done on the calling thread.
+     * @param request request to send
+     */
+    private void submit(Request request) {
+        if (closed) {
+            request.fail(new IllegalStateException("Client is closed."));
+            return;
+        }
+
+        for (NodePool pool : candidates(request)) {
+            Connection connection;
+            try {
+                connection = pool.connection(request.isPost());
+            } catch (IOException e) {
+                pool.markDown();
+                continue;
+            }
+            pool.inFlight.incrementAndGet();
+            connection.send(request);
+            return;
+        }
+        request.fail(new ConnectException("No node in the ring could be reached."));
+    }
+
+    /**
+     * @param request request to be sent
+     * @return nodes to try, least loaded first. Nodes that recently refused a connection come last, so that they
+     *         are still tried if no other node can be reached. A pull's home node for its recipient comes before all
+     *         of them unless it is down.
+     */
+    private List<NodePool> candidates(Request request) {
+        long now = System.nanoTime();
+        ArrayList<NodePool> ordered = new ArrayList<>(pools);
+        ordered.sort(Comparator.<NodePool>comparingInt(pool -> pool.isDown(now) ? 1 : 0)
+                .thenComparingInt(pool -> pool.inFlight.get())
+                .thenComparingLong(pool -> pool.rttNanos));
+        if (!request.isPost() && !pools.isEmpty()) {
+            NodePool home = pools.get(Math.floorMod(request.recipient.hashCode(), pools.size()));
+            if (!home.isDown(now)) {
+                ordered.remove(home);
+                ordered.add(0, home);
+            }
+        }
+        return ordered;
+    }
+
+    /**
+     * Sends a post that was turned away again, once the server says it will have room.
+     * @param request post to send
+     * @param delayMs retry-after given by the server
+     */
+    private void retry(Request request, long delayMs) {
+        if (closed) {
+            request.fail(new IllegalStateException("Client is closed."));
+            return;
+        }
+        try {
+            retries.schedule(() -> submit(request), delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            request.fail(new IllegalStateException("Client is closed."));
+        }
+    }
+
+    /**
+     * Closes every connection. Requests still waiting fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        retries.shutdownNow();
+        for (NodePool pool : pools)
+            pool.close();
+    }
+}
@@ -0,0 +1,64 @@
+package server;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Serves plain-text metrics on a loopback-only port. Any request gets the current metrics, wrapped in a minimal
+ * HTTP response so that it can be fetched with curl or scraped.
+ */
+public class AdminServer {
+    private final ServerSocket listener;
+    private final Supplier<String> metrics;
+
+    /**
+     * AdminServer constructor
+     * @param port loopback port to listen on
+     * @param metrics renders the current metrics
+     * @throws IOException if port cannot be bound
+     */
+    public AdminServer(int port, Supplier<String> metrics) throws IOException {
+        this.listener = new ServerSocket(port, 16, InetAddress.getLoopbackAddress());
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts serving on a background thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this::serve, "admin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void serve() {
+        while (true) {
+            try (Socket connected = listener.accept()) {
+                connected.setSoTimeout(1000);
+                BufferedReader in = new BufferedReader(new InputStreamReader(connected.getInputStream()));
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null && !line.isEmpty()) {
+                        // skip request line and headers
+                    }
+                } catch (SocketTimeoutException e) {
+                    // plain connection with no request, answer anyway
+                }
+
+                byte[] body = metrics.get().getBytes(StandardCharsets.UTF_8);
+                OutputStream out = connected.getOutputStream();
+                out.write(("HTTP/1.0 200 OK\r\nContent-Type: text/plain; version=0.0.4\r\nContent-Length: "
+                        + body.length + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
+                out.write(body);
+                out.flush();
+            } catch (IOException ignored) {
+                // client went away or sent nothing, serve the next one
+            }
+        }
+    }
+}
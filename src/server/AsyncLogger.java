@@ -0,0 +1,183 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log file writer that keeps file I/O off the calling thread. Callers only claim a slot in a preallocated ring
+ * buffer and store the message and time; a background thread formats timestamps and writes entries out,
+ * flushing once the buffer has been drained rather than after every line. If the buffer is full, entries are
+ * dropped rather than blocking the caller.
+ */
+public class AsyncLogger {
+    public enum Level { DEBUG, INFO, ERROR }
+
+    private static final int CAPACITY = 1 << 13;
+    private static final int MASK = CAPACITY - 1;
+    private static final DateTimeFormatter SECOND_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final Level threshold;
+    private final Writer out;
+    private final long[] times = new long[CAPACITY];
+    private final String[] messages = new String[CAPACITY];
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile long head = 0;
+    private volatile boolean writerWaiting = false;
+    private volatile boolean closed = false;
+
+    private long cachedSecond = -1;
+    private String cachedPrefix;
+    private final StringBuilder line = new StringBuilder(256);
+
+    /**
+     * AsyncLogger constructor
+     * @param fileName file to log to, overwritten if it exists
+     * @param threshold lowest level that is logged
+     * @throws IOException if file cannot be opened
+     */
+    public AsyncLogger(String fileName, Level threshold) throws IOException {
+        this.threshold = threshold;
+        this.out = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+
+        writerThread = new Thread(this::writeEntries, "logger-" + fileName);
+        writerThread.setDaemon(true);
+        writerThread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    /**
+     * Reads the log level from the server.logLevel system property.
+     * @return level named by server.logLevel, INFO by default
+     */
+    public static Level levelFromProperty() {
+        return Level.valueOf(System.getProperty("server.logLevel", "INFO").toUpperCase());
+    }
+
+    public boolean isDebugEnabled() {
+        return threshold == Level.DEBUG;
+    }
+
+    public void debug(String message) {
+        if (threshold == Level.DEBUG)
+            append(message);
+    }
+
+    public void info(String message) {
+        if (threshold != Level.ERROR)
+            append(message);
+    }
+
+    public void error(String message) {
+        append(message);
+    }
+
+    /**
+     * @return number of entries dropped because the ring buffer was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void append(String message) {
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & MASK);
+        times[slot] = System.currentTimeMillis();
+        messages[slot] = message;
+        published.set(slot, seq + 1);
+
+        if (writerWaiting)
+            LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Background loop. Writes entries in order, flushing whenever it catches up with the callers.
+     */
+    private void writeEntries() {
+        boolean unflushed = false;
+        while (true) {
+            long seq = head;
+            int slot = (int) (seq & MASK);
+
+            if (published.get(slot) != seq + 1) {
+                if (unflushed) {
+                    flush();
+                    unflushed = false;
+                }
+                if (closed)
+                    return;
+                writerWaiting = true;
+                if (published.get(slot) != seq + 1)
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                writerWaiting = false;
+                continue;
+            }
+
+            write(times[slot], messages[slot]);
+            messages[slot] = null;
+            head = seq + 1;
+            unflushed = true;
+        }
+    }
+
+    private void write(long time, String message) {
+        long second = time / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedPrefix = "[" + SECOND_FORMAT.format(Instant.ofEpochSecond(second)) + ".";
+        }
+
+        int millis = (int) (time % 1000);
+        line.setLength(0);
+        line.append(cachedPrefix);
+        if (millis < 100)
+            line.append('0');
+        if (millis < 10)
+            line.append('0');
+        line.append(millis).append("] ").append(message).append('\n');
+
+        try {
+            out.append(line);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void flush() {
+        try {
+            out.flush();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Writes out any remaining entries and stops the background thread.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+/**
+ * Chang and Roberts election. Each CANDIDATE message carries a single ID. A node forwards a candidate higher than
+ * itself, swaps in its own ID for a lower one if it has not yet taken part, and drops it otherwise, so concurrent
+ * elections started from several nodes collapse into one. A candidate that gets all the way back to itself has
+ * won, and announces itself with one ELECTED lap. Costs O(n log n) messages on average, each of constant size.
+ */
+public class ChangRobertsElection implements Election {
+    private final Ring ring;
+    private final AsyncLogger logger;
+    private boolean participant = false;
+
+    /**
+     * ChangRobertsElection constructor
+     * @param ring node the election runs on
+     * @param logger logger for the node
+     */
+    public ChangRobertsElection(Ring ring, AsyncLogger logger) {
+        this.ring = ring;
+        this.logger = logger;
+    }
+
+    @Override
+    public void start() {
+        if (participant)
+            return;
+        participant = true;
+        ring.sendToNext(Frame.candidate(ring.getId()));
+    }
+
+    @Override
+    public boolean handle(Frame frame) {
+        int id = ring.getId();
+
+        switch (frame.getOpcode()) {
+            case Frame.CANDIDATE:
+                int candidateId = frame.getIds()[0];
+                if (candidateId > id) {
+                    participant = true;
+                    ring.sendToNext(frame);
+                } else if (candidateId < id) {
+                    if (!participant) {
+                        participant = true;
+                        ring.sendToNext(Frame.candidate(id));
+                    }
+                } else {
+                    logger.info("Own candidacy came back, elected.");
+                    participant = false;
+                    ring.setCoordinator(id);
+                    ring.sendToNext(Frame.elected(id));
+                }
+                return true;
+
+            case Frame.ELECTED:
+                int coordinatorId = frame.getIds()[0];
+                if (coordinatorId == id) {
+                    logger.info("Election has been completed.");
+                    ring.electionFinished();
+                    ring.issueToken();
+                } else {
+                    participant = false;
+                    ring.setCoordinator(coordinatorId);
+                    ring.electionFinished();
+                    ring.sendToNext(frame);
+                }
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
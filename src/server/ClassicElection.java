@@ -0,0 +1,113 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * The original election. An ELECTION message gathers every node ID on its way round the ring; the node that
+ * started it then picks the highest and sends UPDATE COORDINATOR ID round a second lap, before telling the new
+ * coordinator the election is complete. Messages grow with the ring, so a ring of n nodes costs O(n^2) bytes.
+ */
+public class ClassicElection implements Election {
+    private final Ring ring;
+    private final AsyncLogger logger;
+    private int highestUpdateStart = 0;
+
+    /**
+     * ClassicElection constructor
+     * @param ring node the election runs on
+     * @param logger logger for the node
+     */
+    public ClassicElection(Ring ring, AsyncLogger logger) {
+        this.ring = ring;
+        this.logger = logger;
+    }
+
+    @Override
+    public void start() {
+        sendElection(new int[0]);
+    }
+
+    /**
+     * Sends election messages to next node.
+     * @param currentIds all ID's currently read.
+     */
+    private void sendElection(int[] currentIds) {
+        int[] ids = Arrays.copyOf(currentIds, currentIds.length + 1);
+        ids[currentIds.length] = ring.getId();
+        ring.sendToNext(Frame.election(ids));
+    }
+
+    /**
+     * Once election ring has completed, all collected ID's are inspected.
+     * @param ids node ID's
+     * @return Highest node ID found within the network
+     */
+    private int findNewCoordinatorID(int[] ids) {
+        logger.info("Finding server with highest ID.");
+        int highestID = -1;
+
+        for (int numId : ids) {
+            if (numId > highestID)
+                highestID = numId;
+        }
+        logger.info("New coordinator shall be " + highestID);
+        return highestID;
+    }
+
+    @Override
+    public boolean handle(Frame frame) {
+        int id = ring.getId();
+
+        switch (frame.getOpcode()) {
+            case Frame.ELECTION:
+                logger.info("Reading server IDs gathered so far.");
+                highestUpdateStart = 0;
+                int[] ids = frame.getIds();
+
+                if (ids[0] == id) {
+                    logger.info("Ring fully explored.");
+                    int electedID = findNewCoordinatorID(ids);
+                    if (ring.getCoordinatorId() != electedID) {
+                        logger.info("Starting coordinator update propagation.");
+                        ring.sendToNext(Frame.updateCoordinatorId(id, electedID));
+                    } else {
+                        logger.info("Coordinator already been updated.");
+                        logger.info("No need for update cycle.");
+                        ring.electionFinished();
+                    }
+                } else {
+                    sendElection(ids);
+                }
+                return true;
+
+            case Frame.UPDATE_COORDINATOR_ID:
+                int startID = frame.getIds()[0];
+                int newCoordinatorID = frame.getIds()[1];
+                boolean changed = ring.getCoordinatorId() != newCoordinatorID;
+
+                if (changed)
+                    ring.setCoordinator(newCoordinatorID);
+
+                if (startID == id) {
+                    ring.electionFinished();
+                    ring.sendToCoordinator(Frame.electionComplete());
+                    logger.info("Election completion sent.");
+                } else if (changed || startID > highestUpdateStart) {
+                    highestUpdateStart = Math.max(highestUpdateStart, startID);
+                    ring.sendToNext(Frame.updateCoordinatorId(startID, newCoordinatorID));
+                } else {
+                    logger.info("New coordinator already set.");
+                    logger.info("Redundant election cancelled.");
+                }
+                return true;
+
+            case Frame.ELECTION_COMPLETE:
+                logger.info("Election has been completed.");
+                ring.issueToken();
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
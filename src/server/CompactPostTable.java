@@ -0,0 +1,187 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Post table that keeps posts off the Java heap, for nodes holding large backlogs. Senders and recipients repeat a
+ * great deal, so each distinct name is stored once in a dictionary and posts refer to it by number. A post is then
+ * a record of sender number, recipient number, body length and UTF-8 body, appended to a direct ByteBuffer chunk,
+ * and the heap only holds its place in the index.
+ * Records are never moved. Each chunk counts the bytes of its posts still stored, and once the chunk is full and
+ * the count reaches zero it goes back on a free list, to be reused by a later put. A single long-lived post keeps
+ * its whole chunk. Names are never dropped from the dictionary.
+ * Posts read back are ordinary Post objects whose sender and recipient are the dictionary's own strings, so they
+ * share them rather than each holding a copy. A chunk is only reused by a put, and puts, snapshots and clears are
+ * all made under the node lock, so a post read by get is never overwritten while it is read; a post read by remove
+ * keeps its chunk from being freed until it has been read.
+ */
+public class CompactPostTable implements PostTable {
+    private static final int CHUNK_BYTES = 1 << 20;
+    private static final int HEADER_BYTES = 12;
+
+    private final ConcurrentHashMap<Long, Long> index = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Chunk> chunks = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Integer> freeChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicLong allocated = new AtomicLong();
+    private final ConcurrentHashMap<String, Integer> nameIds = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[256];
+    private int nameCount = 0;
+    private Chunk current;
+    private int currentIndex;
+
+    /**
+     * Fixed block of off-heap memory that records are appended to.
+     */
+    private static class Chunk {
+        private final ByteBuffer bytes;
+        // bytes of stored posts, plus one while records are still being appended
+        private final AtomicInteger live = new AtomicInteger();
+        private int used;
+
+        private Chunk(int capacity) {
+            bytes = ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    @Override
+    public void put(long postId, Post post) {
+        byte[] body = post.getPost().getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_BYTES + body.length;
+        if (current == null || current.bytes.capacity() - current.used < size)
+            nextChunk(size);
+
+        int offset = current.used;
+        ByteBuffer bytes = current.bytes;
+        bytes.putInt(offset, intern(post.getSender()));
+        bytes.putInt(offset + 4, intern(post.getRecipient()));
+        bytes.putInt(offset + 8, body.length);
+        bytes.put(offset + HEADER_BYTES, body);
+        current.used += size;
+        current.live.addAndGet(size);
+
+        Long replaced = index.put(postId, ((long) currentIndex << 32) | offset);
+        if (replaced != null)
+            release(replaced);
+    }
+
+    @Override
+    public Post get(long postId) {
+        Long location = index.get(postId);
+        return location == null ? null : read(location);
+    }
+
+    @Override
+    public boolean contains(long postId) {
+        return index.containsKey(postId);
+    }
+
+    @Override
+    public Post remove(long postId) {
+        Long location = index.remove(postId);
+        if (location == null)
+            return null;
+        Post post = read(location);
+        release(location);
+        return post;
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public Collection<Long> ids() {
+        return index.keySet();
+    }
+
+    @Override
+    public void clear() {
+        for (Long postId : index.keySet()) {
+            Long location = index.remove(postId);
+            if (location != null)
+                release(location);
+        }
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * Moves appends on to a free chunk, or a new one, with room for a record. Put thread only.
+     * @param size size of record
+     */
+    private void nextChunk(int size) {
+        if (current != null && current.live.decrementAndGet() == 0)
+            freeChunks.add(currentIndex);
+
+        Integer free = freeChunks.poll();
+        if (free != null && chunks.get(free).bytes.capacity() >= size) {
+            currentIndex = free;
+            current = chunks.get(free);
+        } else {
+            Chunk chunk = new Chunk(Math.max(CHUNK_BYTES, size));
+            allocated.addAndGet(chunk.bytes.capacity());
+            if (free != null) {
+                allocated.addAndGet(-chunks.get(free).bytes.capacity());
+                chunks.set(free, chunk);
+                currentIndex = free;
+            } else {
+                chunks.add(chunk);
+                currentIndex = chunks.size() - 1;
+            }
+            current = chunk;
+        }
+        current.used = 0;
+        current.live.set(1);
+    }
+
+    private Post read(long location) {
+        ByteBuffer bytes = chunks.get((int) (location >>> 32)).bytes;
+        int offset = (int) location;
+        String[] known = names;
+        byte[] body = new byte[bytes.getInt(offset + 8)];
+        bytes.get(offset + HEADER_BYTES, body);
+        return new Post(known[bytes.getInt(offset)], known[bytes.getInt(offset + 4)],
+                new String(body, StandardCharsets.UTF_8));
+    }
+
+    private void release(long location) {
+        int chunkIndex = (int) (location >>> 32);
+        Chunk chunk = chunks.get(chunkIndex);
+        int size = HEADER_BYTES + chunk.bytes.getInt((int) location + 8);
+        if (chunk.live.addAndGet(-size) == 0)
+            freeChunks.add(chunkIndex);
+    }
+
+    /**
+     * Looks up the number for a name, adding it to the dictionary if it is new. Put thread only.
+     * @param name sender or recipient
+     * @return number of name
+     */
+    private int intern(String name) {
+        Integer known = nameIds.get(name);
+        if (known != null)
+            return known;
+
+        String[] table = names;
+        if (nameCount == table.length) {
+            String[] grown = new String[table.length * 2];
+            System.arraycopy(table, 0, grown, 0, nameCount);
+            table = grown;
+        }
+        table[nameCount] = name;
+        names = table;
+        nameIds.put(name, nameCount);
+        return nameCount++;
+    }
+}
@@ -0,0 +1,165 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A shard token in on-demand mode, after Suzuki and Kasami. Rather than circulating, the token stays with its last
+ * holder until some node asks for it. Each node numbers its requests for a shard and broadcasts them; the token
+ * records the last request of each node that it has granted, and carries the queue of nodes still waiting for it.
+ * A node with a request number past what the token has granted it is waiting. The token also names its last
+ * holder, whose replica has every change made with it, for a node that finds itself behind to catch up from.
+ */
+public class DemandToken {
+    private final int shard;
+    private final int epoch;
+    private int version;
+    private int holder;
+    private long nextSeq;
+    private final ArrayDeque<Integer> queue;
+    private final HashMap<Integer, Integer> granted;
+
+    /**
+     * @param shard shard the token belongs to
+     * @param epoch epoch the token was issued in
+     * @param version membership version the last holder had
+     * @param holder ID of node issuing the token
+     * @param nextSeq sequence number the next change to the shard will take
+     */
+    public DemandToken(int shard, int epoch, int version, int holder, long nextSeq) {
+        this(shard, epoch, version, holder, nextSeq, new ArrayDeque<>(), new HashMap<>());
+    }
+
+    private DemandToken(int shard, int epoch, int version, int holder, long nextSeq, ArrayDeque<Integer> queue,
+                        HashMap<Integer, Integer> granted) {
+        this.shard = shard;
+        this.epoch = epoch;
+        this.version = version;
+        this.holder = holder;
+        this.nextSeq = nextSeq;
+        this.queue = queue;
+        this.granted = granted;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getEpoch() {
+        return epoch;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getHolder() {
+        return holder;
+    }
+
+    public void setHolder(int holder) {
+        this.holder = holder;
+    }
+
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    public void setNextSeq(long nextSeq) {
+        this.nextSeq = nextSeq;
+    }
+
+    public ArrayDeque<Integer> getQueue() {
+        return queue;
+    }
+
+    /**
+     * @param nodeId ID of node
+     * @return number of node's last request that the token has been granted for
+     */
+    public int getGranted(int nodeId) {
+        return granted.getOrDefault(nodeId, 0);
+    }
+
+    /**
+     * Records that a node's requests up to the given number have been served.
+     * @param nodeId ID of node
+     * @param number request number served
+     */
+    public void setGranted(int nodeId, int number) {
+        granted.put(nodeId, number);
+    }
+
+    /**
+     * @param nodeId ID of node
+     * @param requested node's latest request number, as known by the holder
+     * @return true if node has asked for the token and is neither served nor queued. A token issued anew after
+     *         the last one was lost has served nobody, so every node's latest request counts as waiting
+     */
+    public boolean isWaiting(int nodeId, int requested) {
+        return requested > getGranted(nodeId) && !queue.contains(nodeId);
+    }
+
+    /**
+     * Stops tracking nodes that are no longer in the ring.
+     * @param memberIds IDs of current members
+     */
+    public void retainMembers(Collection<Integer> memberIds) {
+        granted.keySet().retainAll(memberIds);
+        queue.retainAll(memberIds);
+    }
+
+    /**
+     * Issues the token anew in a later epoch, for when changes made with it have been lost. Requests already
+     * granted and queued carry over.
+     * @param epoch new epoch
+     * @param nextSeq sequence number the next change will take, from the new epoch's range
+     * @return new token
+     */
+    public DemandToken reissue(int epoch, long nextSeq) {
+        return new DemandToken(shard, epoch, version, holder, nextSeq, queue, granted);
+    }
+
+    /**
+     * @return GRANT frame carrying token. Ids are shard, epoch, version, holder, queue length, queue, then ID and
+     * granted number for each node
+     */
+    public Frame toFrame() {
+        int[] ids = new int[5 + queue.size() + 2 * granted.size()];
+        ids[0] = shard;
+        ids[1] = epoch;
+        ids[2] = version;
+        ids[3] = holder;
+        ids[4] = queue.size();
+        int i = 5;
+        for (int nodeId : queue)
+            ids[i++] = nodeId;
+        for (Map.Entry<Integer, Integer> entry : granted.entrySet()) {
+            ids[i++] = entry.getKey();
+            ids[i++] = entry.getValue();
+        }
+        return Frame.grant(ids, nextSeq);
+    }
+
+    /**
+     * @param frame GRANT frame
+     * @return token carried by frame
+     */
+    public static DemandToken fromFrame(Frame frame) {
+        int[] ids = frame.getIds();
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        int i = 5;
+        for (; i < 5 + ids[4]; i++)
+            queue.add(ids[i]);
+        HashMap<Integer, Integer> granted = new HashMap<>();
+        for (; i + 1 < ids.length; i += 2)
+            granted.put(ids[i], ids[i + 1]);
+        return new DemandToken(ids[0], ids[1], ids[2], ids[3], frame.getLog().getNextSeq(), queue, granted);
+    }
+}
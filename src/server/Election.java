@@ -0,0 +1,82 @@
+package server;
+
+/**
+ * Algorithm used to elect a coordinator on the ring. Every node in a ring must use the same one. Calls are made
+ * while the node is handling a ring message, one at a time.
+ */
+public interface Election {
+    /**
+     * What an election needs from the node it runs on.
+     */
+    interface Ring {
+        int getId();
+
+        int getCoordinatorId();
+
+        /**
+         * Sends a message to the next node on the ring.
+         * @param frame message to be sent
+         */
+        void sendToNext(Frame frame);
+
+        /**
+         * Sends a message to the previous node on the ring.
+         * @param frame message to be sent
+         */
+        void sendToPrevious(Frame frame);
+
+        /**
+         * Sends a message to the current coordinator.
+         * @param frame message to be sent
+         */
+        void sendToCoordinator(Frame frame);
+
+        /**
+         * Records the result of an election at this node.
+         * @param coordinatorId ID of new coordinator
+         */
+        void setCoordinator(int coordinatorId);
+
+        /**
+         * Called once this node knows an election is over.
+         */
+        void electionFinished();
+
+        /**
+         * Called on the new coordinator once every node knows it was elected, to put the token on the ring.
+         */
+        void issueToken();
+    }
+
+    /**
+     * Starts an election from this node.
+     */
+    void start();
+
+    /**
+     * Handles a ring message if it belongs to this election algorithm.
+     * @param frame message received
+     * @return true if message was handled
+     */
+    boolean handle(Frame frame);
+
+    /**
+     * Creates an election by name.
+     * @param name classic, chang-roberts or hirschberg-sinclair
+     * @param ring node the election runs on
+     * @param logger logger for the node
+     * @return election algorithm
+     */
+    static Election create(String name, Ring ring, AsyncLogger logger) {
+        switch (name.toLowerCase()) {
+            case "classic":
+                return new ClassicElection(ring, logger);
+            case "chang-roberts":
+                return new ChangRobertsElection(ring, logger);
+            case "hirschberg-sinclair":
+                return new HirschbergSinclairElection(ring, logger);
+            default:
+                throw new IllegalArgumentException("Unknown election " + name);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package server;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A single ring message passed between ServerNodes. Each opcode uses only the fields it needs.
+ */
+public class Frame {
+    public static final byte HELLO = 1;
+    public static final byte NEXT_NODE = 2;
+    public static final byte COMPLETE = 3;
+    public static final byte ELECTION = 4;
+    public static final byte UPDATE_COORDINATOR_ID = 5;
+    public static final byte ELECTION_COMPLETE = 6;
+    public static final byte TOKEN = 7;
+    public static final byte PREVIOUS_NODE = 8;
+    public static final byte CANDIDATE = 9;
+    public static final byte ELECTED = 10;
+    public static final byte PROBE = 11;
+    public static final byte REPLY = 12;
+    public static final byte HEARTBEAT = 13;
+    public static final byte HEARTBEAT_ACK = 14;
+    public static final byte JOIN = 15;
+    public static final byte MEMBERSHIP = 16;
+    public static final byte STATE = 17;
+    public static final byte REQUEST = 18;
+    public static final byte GRANT = 19;
+    public static final byte COMMIT = 20;
+    public static final byte SEED = 21;
+    public static final byte CATCH_UP = 22;
+
+    private static final String[] COMMANDS = {null, "HELLO", "NEXT NODE", "COMPLETE", "ELECTION",
+            "UPDATE COORDINATOR ID", "ELECTION COMPLETE", "TOKEN", "PREVIOUS NODE", "CANDIDATE", "ELECTED", "PROBE",
+            "REPLY", "HEARTBEAT", "HEARTBEAT ACK", "JOIN", "MEMBERSHIP", "STATE", "REQUEST", "GRANT", "COMMIT",
+            "SEED", "CATCH UP"};
+
+    private final byte opcode;
+    private final int[] ids;
+    private final Node node;
+    private final String text;
+    private final PostLog log;
+    private final List<Node> nodes;
+
+    /**
+     * Frame constructor
+     * @param opcode type of message
+     * @param ids node IDs carried by the message, empty if none
+     * @param node node carried by the message, null if none
+     * @param text text carried by the message, null if none
+     * @param log post store changes carried by the message, null if none
+     */
+    public Frame(byte opcode, int[] ids, Node node, String text, PostLog log) {
+        this(opcode, ids, node, text, log, null);
+    }
+
+    /**
+     * Frame constructor
+     * @param opcode type of message
+     * @param ids node IDs carried by the message, empty if none
+     * @param node node carried by the message, null if none
+     * @param text text carried by the message, null if none
+     * @param log post store changes carried by the message, null if none
+     * @param nodes list of nodes carried by the message, null if none
+     */
+    public Frame(byte opcode, int[] ids, Node node, String text, PostLog log, List<Node> nodes) {
+        this.opcode = opcode;
+        this.ids = ids;
+        this.node = node;
+        this.text = text;
+        this.log = log;
+        this.nodes = nodes;
+    }
+
+    public static Frame hello(String text) {
+        return new Frame(HELLO, new int[0], null, text, null);
+    }
+
+    public static Frame nextNode(Node node) {
+        return new Frame(NEXT_NODE, new int[0], node, null, null);
+    }
+
+    public static Frame complete() {
+        return new Frame(COMPLETE, new int[0], null, null, null);
+    }
+
+    public static Frame election(int[] ids) {
+        return new Frame(ELECTION, ids, null, null, null);
+    }
+
+    public static Frame updateCoordinatorId(int startID, int newCoordinator) {
+        return new Frame(UPDATE_COORDINATOR_ID, new int[]{startID, newCoordinator}, null, null, null);
+    }
+
+    public static Frame electionComplete() {
+        return new Frame(ELECTION_COMPLETE, new int[0], null, null, null);
+    }
+
+    /**
+     * @param shard shard the token grants access to
+     * @param epoch token generation, raised each time a lost token is replaced
+     * @param hop number of times the token has been passed, wrapping
+     * @param credit posts that may still be made with the token before it is refilled
+     * @param log post store changes travelling with the token
+     * @return token frame
+     */
+    public static Frame token(int shard, int epoch, int hop, int credit, PostLog log) {
+        return new Frame(TOKEN, new int[]{shard, epoch, hop, credit}, null, null, log);
+    }
+
+    public static Frame previousNode(Node node) {
+        return new Frame(PREVIOUS_NODE, new int[0], node, null, null);
+    }
+
+    public static Frame candidate(int candidateId) {
+        return new Frame(CANDIDATE, new int[]{candidateId}, null, null, null);
+    }
+
+    public static Frame elected(int coordinatorId) {
+        return new Frame(ELECTED, new int[]{coordinatorId}, null, null, null);
+    }
+
+    public static Frame probe(int candidateId, int phase, int hops, int direction) {
+        return new Frame(PROBE, new int[]{candidateId, phase, hops, direction}, null, null, null);
+    }
+
+    public static Frame reply(int candidateId, int phase, int direction) {
+        return new Frame(REPLY, new int[]{candidateId, phase, direction}, null, null, null);
+    }
+
+    public static Frame heartbeat(Node sender) {
+        return new Frame(HEARTBEAT, new int[0], sender, null, null);
+    }
+
+    /**
+     * @param senderId ID of node acknowledging
+     * @param tokenHops hop of the last token the sender received or passed on, for each shard
+     * @return heartbeat acknowledgement frame
+     */
+    public static Frame heartbeatAck(int senderId, int[] tokenHops) {
+        int[] ids = new int[tokenHops.length + 1];
+        ids[0] = senderId;
+        System.arraycopy(tokenHops, 0, ids, 1, tokenHops.length);
+        return new Frame(HEARTBEAT_ACK, ids, null, null, null);
+    }
+
+    public static Frame join(Node joiner) {
+        return new Frame(JOIN, new int[0], joiner, null, null);
+    }
+
+    /**
+     * @param version version of the membership view
+     * @param coordinatorId coordinator in the view
+     * @param members members of the view, in ring order
+     * @return membership frame
+     */
+    public static Frame membership(int version, int coordinatorId, List<Node> members) {
+        return new Frame(MEMBERSHIP, new int[]{version, coordinatorId}, null, null, null, members);
+    }
+
+    /**
+     * @param shard shard the snapshot was taken from
+     * @param snapshot every post in a replica of the shard, see PostStore.snapshot
+     * @return state transfer frame
+     */
+    public static Frame state(int shard, PostLog snapshot) {
+        return new Frame(STATE, new int[]{shard}, null, null, snapshot);
+    }
+
+    /**
+     * @param shard shard whose token is wanted
+     * @param requesterId ID of node that wants it
+     * @param number requester's request number for the shard, raised with every request
+     * @return on-demand token request frame
+     */
+    public static Frame request(int shard, int requesterId, int number) {
+        return new Frame(REQUEST, new int[]{shard, requesterId, number}, null, null, null);
+    }
+
+    /**
+     * @param shard shard whose token is waiting for this node's replica
+     * @param requesterId ID of node that is behind
+     * @return frame asking a token's last holder for its membership view and replica
+     */
+    public static Frame catchUp(int shard, int requesterId) {
+        return new Frame(CATCH_UP, new int[]{shard, requesterId}, null, null, null);
+    }
+
+    /**
+     * @param ids token state, see DemandToken
+     * @param nextSeq sequence number the next change to the shard will take
+     * @return on-demand token frame
+     */
+    public static Frame grant(int[] ids, long nextSeq) {
+        if (ids.length < 5 || ids[4] < 0 || ids[4] > ids.length - 5)
+            throw new IllegalArgumentException("Malformed token state.");
+        return new Frame(GRANT, ids, null, null, new PostLog(nextSeq, new ArrayList<>()));
+    }
+
+    /**
+     * @param shard shard the changes were made to
+     * @param epoch epoch of the token they were made with
+     * @param log changes made by one token holder, in sequence order
+     * @return frame carrying the changes to every replica
+     */
+    public static Frame commit(int shard, int epoch, PostLog log) {
+        return new Frame(COMMIT, new int[]{shard, epoch}, null, null, log);
+    }
+
+    /**
+     * @param shard shard a token is about to be issued for
+     * @param issuerId ID of node issuing the token, where the frame ends its lap
+     * @param epoch highest epoch seen on the lap so far
+     * @param holderId ID of a node on the lap so far that has the on-demand token, -1 if none
+     * @param nextSeq one past the highest sequence number applied by any replica on the lap so far
+     * @return frame sent once round the ring to find where the new token must number its changes from
+     */
+    public static Frame seed(int shard, int issuerId, int epoch, int holderId, long nextSeq) {
+        return new Frame(SEED, new int[]{shard, issuerId, epoch, holderId}, null, null,
+                new PostLog(nextSeq, new ArrayList<>()));
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public int[] getIds() {
+        return ids;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public PostLog getLog() {
+        return log;
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return command line used for this frame in text mode
+     */
+    public String getCommand() {
+        return COMMANDS[opcode];
+    }
+
+    /**
+     * @return payload line used for this frame in text mode
+     */
+    public String getPayload() {
+        switch (opcode) {
+            case HELLO:
+                return text;
+            case NEXT_NODE:
+            case PREVIOUS_NODE:
+            case HEARTBEAT:
+            case JOIN:
+                return node.getId() + "," + node.getHost() + "," + node.getPort();
+            case MEMBERSHIP:
+                StringBuilder members = new StringBuilder().append(ids[0]).append(',').append(ids[1]);
+                for (Node member : nodes)
+                    members.append(';').append(member.getId()).append(',').append(member.getHost()).append(',')
+                            .append(member.getPort());
+                return members.toString();
+            case STATE:
+                ByteBuffer snapshot = ByteBuffer.allocate(WireCodec.snapshotSize(log));
+                WireCodec.writeSnapshot(snapshot, log);
+                return ids[0] + "," + Base64.getEncoder().encodeToString(snapshot.array());
+            case ELECTION:
+                StringBuilder sb = new StringBuilder();
+                for (int id : ids)
+                    sb.append(id).append(',');
+                return sb.toString();
+            case UPDATE_COORDINATOR_ID:
+            case CANDIDATE:
+            case ELECTED:
+            case PROBE:
+            case REPLY:
+            case HEARTBEAT_ACK:
+            case REQUEST:
+            case CATCH_UP:
+                StringBuilder joined = new StringBuilder();
+                for (int i = 0; i < ids.length; i++) {
+                    if (i > 0)
+                        joined.append(',');
+                    joined.append(ids[i]);
+                }
+                return joined.toString();
+            case TOKEN:
+                ByteBuffer buffer = ByteBuffer.allocate(WireCodec.logSize(log));
+                WireCodec.writeLog(buffer, log);
+                return ids[0] + "," + ids[1] + "," + ids[2] + "," + ids[3] + ","
+                        + Base64.getEncoder().encodeToString(buffer.array());
+            case GRANT:
+            case COMMIT:
+            case SEED:
+                ByteBuffer changes = ByteBuffer.allocate(WireCodec.logSize(log));
+                WireCodec.writeLog(changes, log);
+                StringBuilder fields = new StringBuilder();
+                for (int id : ids)
+                    fields.append(id).append(',');
+                return fields.append(Base64.getEncoder().encodeToString(changes.array())).toString();
+            default:
+                return "";
+        }
+    }
+
+    /**
+     * Parses a text mode message.
+     * @param command command line of the message
+     * @param payload payload line of the message
+     * @return parsed frame, or null if command is not a ring message, or is a TOKEN without its state
+     * @throws IllegalArgumentException if the payload does not have the fields the command needs
+     */
+    public static Frame fromText(String command, String payload) {
+        String[] split;
+        switch (command) {
+            case "HELLO":
+                return hello(payload);
+            case "NEXT NODE":
+                return nextNode(parseNode(payload));
+            case "PREVIOUS NODE":
+                return previousNode(parseNode(payload));
+            case "COMPLETE":
+                return complete();
+            case "ELECTION":
+                return election(parseIds(payload, 1));
+            case "UPDATE COORDINATOR ID":
+                int[] update = parseIds(payload, 2);
+                return updateCoordinatorId(update[0], update[1]);
+            case "CANDIDATE":
+                return candidate(Integer.parseInt(payload));
+            case "ELECTED":
+                return elected(Integer.parseInt(payload));
+            case "PROBE":
+                int[] probe = parseIds(payload, 4);
+                return probe(probe[0], probe[1], probe[2], probe[3]);
+            case "REPLY":
+                int[] reply = parseIds(payload, 3);
+                return reply(reply[0], reply[1], reply[2]);
+            case "ELECTION COMPLETE":
+                return electionComplete();
+            case "TOKEN":
+                if (payload.isEmpty())
+                    return null;
+                split = split(payload, ",", 5);
+                return token(Integer.parseInt(split[0]), Integer.parseInt(split[1]), Integer.parseInt(split[2]),
+                        Integer.parseInt(split[3]), parseLog(split[4]));
+            case "HEARTBEAT":
+                return heartbeat(parseNode(payload));
+            case "HEARTBEAT ACK":
+                int[] ack = parseIds(payload, 1);
+                return heartbeatAck(ack[0], Arrays.copyOfRange(ack, 1, ack.length));
+            case "JOIN":
+                return join(parseNode(payload));
+            case "MEMBERSHIP":
+                split = payload.split(";");
+                int[] view = parseIds(split[0], 2);
+                ArrayList<Node> members = new ArrayList<>();
+                for (int i = 1; i < split.length; i++)
+                    members.add(parseNode(split[i]));
+                return membership(view[0], view[1], members);
+            case "STATE":
+                split = split(payload, ",", 2);
+                try {
+                    return state(Integer.parseInt(split[0]),
+                            WireCodec.readSnapshot(ByteBuffer.wrap(Base64.getDecoder().decode(split[1]))));
+                } catch (BufferUnderflowException e) {
+                    throw new IllegalArgumentException("Truncated snapshot.");
+                }
+            case "REQUEST":
+                int[] request = parseIds(payload, 3);
+                return request(request[0], request[1], request[2]);
+            case "CATCH UP":
+                int[] behind = parseIds(payload, 2);
+                return catchUp(behind[0], behind[1]);
+            case "GRANT":
+            case "COMMIT":
+            case "SEED":
+                int last = payload.lastIndexOf(',');
+                if (last < 0)
+                    throw new IllegalArgumentException(command + " without its changes.");
+                PostLog changes = parseLog(payload.substring(last + 1));
+                if (command.equals("COMMIT")) {
+                    int[] fields = parseIds(payload.substring(0, last), 2);
+                    return commit(fields[0], fields[1], changes);
+                }
+                if (command.equals("SEED")) {
+                    int[] fields = parseIds(payload.substring(0, last), 4);
+                    return seed(fields[0], fields[1], fields[2], fields[3], changes.getNextSeq());
+                }
+                return grant(parseIds(payload.substring(0, last), 1), changes.getNextSeq());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param payload fields separated by commas
+     * @param min fewest fields the message needs
+     * @return fields as numbers
+     */
+    private static int[] parseIds(String payload, int min) {
+        String[] split = payload.split(",");
+        if (split.length < min)
+            throw new IllegalArgumentException("Expected at least " + min + " fields, got " + split.length + ".");
+        int[] ids = new int[split.length];
+        for (int i = 0; i < split.length; i++)
+            ids[i] = Integer.parseInt(split[i]);
+        return ids;
+    }
+
+    /**
+     * @param payload fields separated by a separator, the last of which may itself contain it
+     * @param separator separator
+     * @param count number of fields the message needs
+     * @return fields
+     */
+    private static String[] split(String payload, String separator, int count) {
+        String[] split = payload.split(separator, count);
+        if (split.length < count)
+            throw new IllegalArgumentException("Expected " + count + " fields, got " + split.length + ".");
+        return split;
+    }
+
+    private static Node parseNode(String payload) {
+        String[] split = split(payload, ",", 3);
+        return new Node(Integer.parseInt(split[0]), split[1], Integer.parseInt(split[2]));
+    }
+
+    private static PostLog parseLog(String base64) {
+        try {
+            return WireCodec.readLog(ByteBuffer.wrap(Base64.getDecoder().decode(base64)));
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated log.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (opcode == TOKEN)
+            return getCommand() + " (shard " + ids[0] + ", epoch " + ids[1] + ", hop " + ids[2] + ", "
+                    + log.getEntries().size() + " changes, next seq " + log.getNextSeq() + ")";
+        if (opcode == GRANT)
+            return getCommand() + " (shard " + ids[0] + ", epoch " + ids[1] + ", next seq " + log.getNextSeq() + ")";
+        if (opcode == COMMIT)
+            return getCommand() + " (shard " + ids[0] + ", epoch " + ids[1] + ", " + log.getEntries().size()
+                    + " changes, next seq " + log.getNextSeq() + ")";
+        if (opcode == SEED)
+            return getCommand() + " (shard " + ids[0] + ", issuer " + ids[1] + ", epoch " + ids[2] + ", holder "
+                    + ids[3] + ", next seq " + log.getNextSeq() + ")";
+        if (opcode == STATE)
+            return getCommand() + " (shard " + ids[0] + ", " + log.getEntries().size() + " posts, next seq "
+                    + log.getNextSeq() + ")";
+        String payload = getPayload();
+        return payload.isEmpty() ? getCommand() : getCommand() + " " + payload;
+    }
+}
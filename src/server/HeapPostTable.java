@@ -0,0 +1,51 @@
+package server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Post table that keeps each post as a Post object on the heap.
+ */
+public class HeapPostTable implements PostTable {
+    private final ConcurrentHashMap<Long, Post> posts = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(long postId, Post post) {
+        posts.put(postId, post);
+    }
+
+    @Override
+    public Post get(long postId) {
+        return posts.get(postId);
+    }
+
+    @Override
+    public boolean contains(long postId) {
+        return posts.containsKey(postId);
+    }
+
+    @Override
+    public Post remove(long postId) {
+        return posts.remove(postId);
+    }
+
+    @Override
+    public int size() {
+        return posts.size();
+    }
+
+    @Override
+    public Collection<Long> ids() {
+        return posts.keySet();
+    }
+
+    @Override
+    public void clear() {
+        posts.clear();
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return 0;
+    }
+}
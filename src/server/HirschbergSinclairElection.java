@@ -0,0 +1,111 @@
+package server;
+
+/**
+ * Hirschberg and Sinclair election. In phase k a candidate sends a PROBE both ways round the ring, which travels
+ * up to 2^k hops unless it meets a higher ID, and comes back as a REPLY. A candidate that gets both replies moves
+ * on to the next phase; one whose probe goes all the way round has won, and announces itself with one ELECTED
+ * lap. Costs O(n log n) messages in the worst case, each of constant size, but needs links in both directions.
+ */
+public class HirschbergSinclairElection implements Election {
+    public static final int NEXT = 0;
+    public static final int PREVIOUS = 1;
+
+    private final Ring ring;
+    private final AsyncLogger logger;
+    private boolean started = false;
+    private boolean elected = false;
+    private int phase = 0;
+    private int replies = 0;
+
+    /**
+     * HirschbergSinclairElection constructor
+     * @param ring node the election runs on
+     * @param logger logger for the node
+     */
+    public HirschbergSinclairElection(Ring ring, AsyncLogger logger) {
+        this.ring = ring;
+        this.logger = logger;
+    }
+
+    @Override
+    public void start() {
+        if (started)
+            return;
+        started = true;
+        elected = false;
+        phase = 0;
+        replies = 0;
+        sendProbes();
+    }
+
+    private void sendProbes() {
+        int id = ring.getId();
+        send(NEXT, Frame.probe(id, phase, 1, NEXT));
+        send(PREVIOUS, Frame.probe(id, phase, 1, PREVIOUS));
+    }
+
+    private void send(int direction, Frame frame) {
+        if (direction == NEXT)
+            ring.sendToNext(frame);
+        else
+            ring.sendToPrevious(frame);
+    }
+
+    @Override
+    public boolean handle(Frame frame) {
+        int id = ring.getId();
+        int[] ids = frame.getIds();
+
+        switch (frame.getOpcode()) {
+            case Frame.PROBE:
+                int candidateId = ids[0];
+                int probePhase = ids[1];
+                int hops = ids[2];
+                int direction = ids[3];
+
+                if (candidateId == id) {
+                    if (!elected) {
+                        logger.info("Own probe went round the ring, elected.");
+                        elected = true;
+                        ring.setCoordinator(id);
+                        ring.sendToNext(Frame.elected(id));
+                    }
+                } else if (candidateId > id) {
+                    if (hops < (1 << probePhase))
+                        send(direction, Frame.probe(candidateId, probePhase, hops + 1, direction));
+                    else
+                        send(1 - direction, Frame.reply(candidateId, probePhase, 1 - direction));
+                } else {
+                    start();
+                }
+                return true;
+
+            case Frame.REPLY:
+                if (ids[0] != id) {
+                    send(ids[2], frame);
+                } else if (ids[1] == phase && ++replies == 2) {
+                    phase++;
+                    replies = 0;
+                    sendProbes();
+                }
+                return true;
+
+            case Frame.ELECTED:
+                int coordinatorId = ids[0];
+                started = false;
+                if (coordinatorId == id) {
+                    logger.info("Election has been completed.");
+                    ring.electionFinished();
+                    ring.issueToken();
+                } else {
+                    ring.setCoordinator(coordinatorId);
+                    ring.electionFinished();
+                    ring.sendToNext(frame);
+                }
+                return true;
+
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent log-linear histogram of non-negative values, in the style of HdrHistogram. Each power of two is
+ * split into 32 linear sub-buckets, so recorded values are kept to within about 3%. Recording is lock-free and
+ * does not allocate.
+ */
+public class Histogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        long lowest = (SUB_BUCKETS + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Records a value. Negative values are recorded as 0.
+     * @param value value to be recorded
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+
+        long currentMax;
+        while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+            // retry until max is at least value
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : sum.get() / n;
+    }
+
+    /**
+     * @param quantile quantile between 0 and 1
+     * @return value at or below which the given fraction of recorded values fall, within bucket precision
+     */
+    public long getValueAtQuantile(double quantile) {
+        long total = count.get();
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestValueAt(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Appends this histogram as plain-text metrics.
+     * @param sb builder to append to
+     * @param name metric name
+     */
+    public void render(StringBuilder sb, String name) {
+        sb.append(name).append("_count ").append(getCount()).append('\n');
+        sb.append(name).append("_mean ").append(getMean()).append('\n');
+        sb.append(name).append("{quantile=\"0.5\"} ").append(getValueAtQuantile(0.5)).append('\n');
+        sb.append(name).append("{quantile=\"0.9\"} ").append(getValueAtQuantile(0.9)).append('\n');
+        sb.append(name).append("{quantile=\"0.99\"} ").append(getValueAtQuantile(0.99)).append('\n');
+        sb.append(name).append("{quantile=\"0.999\"} ").append(getValueAtQuantile(0.999)).append('\n');
+        sb.append(name).append("_max ").append(getMax()).append('\n');
+    }
+}
@@ -0,0 +1,52 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Server side of a single connection. Fed one line at a time by whichever I/O mode the server runs in, until the
+ * connection negotiates binary frames, after which it is fed whole frames instead.
+ */
+public interface LineProtocol {
+    /**
+     * Sends lines to the connection from outside onLine, from any thread. A line may hold several lines joined by
+     * newlines, which are sent together. If the protocol has finished by the time a line is sent, the connection
+     * is closed once that line has gone.
+     */
+    interface Sink {
+        void send(String line);
+    }
+
+    /**
+     * Called once before any input, with the sink for this connection.
+     * @param sink sink for lines sent outside onLine
+     */
+    void attach(Sink sink);
+
+    /**
+     * Handles a line received from the connection.
+     * @param line line received, without its line terminator
+     * @param replies list to add lines that should be sent back to
+     */
+    void onLine(String line, List<String> replies);
+
+    /**
+     * Handles a binary frame received from the connection.
+     * @param frame frame received
+     */
+    void onFrame(Frame frame);
+
+    /**
+     * @return true once the connection has switched from text lines to binary frames
+     */
+    boolean isBinary();
+
+    /**
+     * @return true once the connection should be closed after any pending replies are sent
+     */
+    boolean isFinished();
+
+    /**
+     * Called once the connection has been closed, by either side.
+     */
+    void closed();
+}
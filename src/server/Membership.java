@@ -0,0 +1,132 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A node's view of ring membership, held in memory. Nodes are kept in ring order and indexed by ID.
+ * Only the token holder changes the view, so no two changes can share a version. Each new view is gossiped
+ * around the ring ahead of the token, and a node adopts any view newer than its own.
+ */
+public class Membership {
+    private int version = 0;
+    private int coordinatorId;
+    private final ArrayList<Node> ring = new ArrayList<>();
+    private final HashMap<Integer, Node> byId = new HashMap<>();
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getCoordinatorId() {
+        return coordinatorId;
+    }
+
+    public void setCoordinatorId(int coordinatorId) {
+        this.coordinatorId = coordinatorId;
+    }
+
+    /**
+     * @return members in ring order
+     */
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(ring);
+    }
+
+    /**
+     * @param nodeId ID of node to look up
+     * @return member with that ID, or null if there is none
+     */
+    public Node get(int nodeId) {
+        return byId.get(nodeId);
+    }
+
+    public boolean contains(int nodeId) {
+        return byId.containsKey(nodeId);
+    }
+
+    public int size() {
+        return ring.size();
+    }
+
+    /**
+     * Replaces this view with a newer one.
+     * @param version version of the new view
+     * @param coordinatorId coordinator in the new view
+     * @param nodes members of the new view, in ring order
+     * @return true if the view was adopted, false if it is not newer than this one
+     */
+    public boolean adopt(int version, int coordinatorId, List<Node> nodes) {
+        if (version <= this.version)
+            return false;
+
+        this.version = version;
+        this.coordinatorId = coordinatorId;
+        ring.clear();
+        byId.clear();
+        for (Node node : nodes) {
+            ring.add(node);
+            byId.put(node.getId(), node);
+        }
+        return true;
+    }
+
+    /**
+     * Inserts a node into the ring straight after another. A node that is already a member is moved.
+     * @param predecessorId ID of member the node goes after
+     * @param node node to be inserted
+     */
+    public void insertAfter(int predecessorId, Node node) {
+        remove(node.getId());
+        int index = indexOf(predecessorId);
+        ring.add(index + 1, node);
+        byId.put(node.getId(), node);
+    }
+
+    /**
+     * @param nodeId ID of node to be removed
+     * @return true if the node was a member
+     */
+    public boolean remove(int nodeId) {
+        if (byId.remove(nodeId) == null)
+            return false;
+        ring.remove(indexOf(nodeId));
+        return true;
+    }
+
+    /**
+     * Moves this view on to the next version, once a change has been made.
+     * @return new version
+     */
+    public int nextVersion() {
+        return ++version;
+    }
+
+    /**
+     * @param nodeId ID of member to start from
+     * @param skip IDs of nodes to pass over
+     * @return first member after nodeId in ring order that is not skipped, or null if there is none
+     */
+    public Node successorOf(int nodeId, Collection<Integer> skip) {
+        int start = indexOf(nodeId);
+        if (start < 0)
+            return null;
+        for (int i = 1; i < ring.size(); i++) {
+            Node candidate = ring.get((start + i) % ring.size());
+            if (!skip.contains(candidate.getId()))
+                return candidate;
+        }
+        return null;
+    }
+
+    private int indexOf(int nodeId) {
+        for (int i = 0; i < ring.size(); i++) {
+            if (ring.get(i).getId() == nodeId)
+                return i;
+        }
+        return -1;
+    }
+}
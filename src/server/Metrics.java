@@ -0,0 +1,50 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency distributions and counters for a ServerNode. Latencies are in nanoseconds.
+ */
+public class Metrics {
+    public final Histogram post = new Histogram();
+    public final Histogram postCommit = new Histogram();
+    public final Histogram pull = new Histogram();
+    public final Histogram tokenHold = new Histogram();
+    public final Histogram tokenPass = new Histogram();
+    public final Histogram ringRotation = new Histogram();
+    public final Histogram election = new Histogram();
+    public final Histogram batchSize = new Histogram();
+
+    public final AtomicInteger openConnections = new AtomicInteger();
+    public final AtomicLong acceptedConnections = new AtomicLong();
+    public final AtomicLong electionMessages = new AtomicLong();
+    public final AtomicLong electionBytes = new AtomicLong();
+    public final AtomicLong nodeFailures = new AtomicLong();
+    public final AtomicLong tokensRegenerated = new AtomicLong();
+    public final AtomicLong staleTokensDropped = new AtomicLong();
+    public final AtomicLong postsRejected = new AtomicLong();
+
+    /**
+     * Appends every histogram and counter as plain-text metrics.
+     * @param sb builder to append to
+     */
+    public void render(StringBuilder sb) {
+        post.render(sb, "post_latency_ns");
+        postCommit.render(sb, "post_commit_latency_ns");
+        pull.render(sb, "pull_latency_ns");
+        tokenHold.render(sb, "token_hold_ns");
+        tokenPass.render(sb, "token_pass_ns");
+        ringRotation.render(sb, "ring_rotation_ns");
+        election.render(sb, "election_duration_ns");
+        batchSize.render(sb, "batch_size");
+        sb.append("connections_open ").append(openConnections.get()).append('\n');
+        sb.append("connections_accepted_total ").append(acceptedConnections.get()).append('\n');
+        sb.append("election_messages_sent_total ").append(electionMessages.get()).append('\n');
+        sb.append("election_bytes_sent_total ").append(electionBytes.get()).append('\n');
+        sb.append("node_failures_total ").append(nodeFailures.get()).append('\n');
+        sb.append("tokens_regenerated_total ").append(tokensRegenerated.get()).append('\n');
+        sb.append("stale_tokens_dropped_total ").append(staleTokensDropped.get()).append('\n');
+        sb.append("posts_rejected_total ").append(postsRejected.get()).append('\n');
+    }
+}
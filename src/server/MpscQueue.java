@@ -0,0 +1,96 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Unbounded lock-free queue for many producers and a single consumer, after Dmitry Vyukov's linked MPSC queue.
+ * Producers swap themselves in as the tail with one atomic exchange and then link the old tail to their node,
+ * so offering never waits on another thread. The consumer owns the head. Calls to poll and forEach must not
+ * overlap with each other; in ServerNode they are only made while holding the node lock.
+ * @param <E> type of element
+ */
+public class MpscQueue<E> {
+    private final AtomicReference<Link<E>> tail;
+    private final AtomicInteger size = new AtomicInteger();
+    private Link<E> head;
+
+    private static class Link<E> {
+        private E value;
+        private volatile Link<E> next;
+
+        private Link(E value) {
+            this.value = value;
+        }
+    }
+
+    public MpscQueue() {
+        head = new Link<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Adds an element at the tail. May be called from any thread.
+     * @param element element to be added
+     */
+    public void offer(E element) {
+        size.incrementAndGet();
+        link(element);
+    }
+
+    /**
+     * Adds an element at the tail, unless the queue already holds limit elements. May be called from any thread.
+     * @param element element to be added
+     * @param limit most elements the queue may hold
+     * @return true if the element was added
+     */
+    public boolean offer(E element, int limit) {
+        if (size.incrementAndGet() > limit) {
+            size.decrementAndGet();
+            return false;
+        }
+        link(element);
+        return true;
+    }
+
+    private void link(E element) {
+        Link<E> added = new Link<>(element);
+        tail.getAndSet(added).next = added;
+    }
+
+    /**
+     * Removes the element at the head. Consumer only.
+     * @return element, or null if the queue is empty or the next producer has not finished linking yet
+     */
+    public E poll() {
+        Link<E> next = head.next;
+        if (next == null)
+            return null;
+        E value = next.value;
+        next.value = null;
+        head = next;
+        size.decrementAndGet();
+        return value;
+    }
+
+    /**
+     * Visits every element that has been linked, head first, without removing any. Consumer only.
+     * @param action run for each element
+     */
+    public void forEach(Consumer<? super E> action) {
+        for (Link<E> link = head.next; link != null; link = link.next)
+            action.accept(link.value);
+    }
+
+    /**
+     * @return number of elements, including any whose producer is still linking them
+     */
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get() == 0;
+    }
+}
@@ -0,0 +1,241 @@
+package server;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Point in time copy of a ServerNode's state, so that a restarted node can rejoin the ring where it was instead
+ * of waiting for the ring to be rebuilt. Holds the membership view, the node's previous node, and for each shard
+ * the token epoch and hop, the replica, the posts and deletes still waiting for the token, and how many posts the
+ * node had made from its queue by then.
+ * Written in binary, with a checksum, to a temporary file that is then moved over the old snapshot, so a crash
+ * while writing leaves the previous snapshot in place.
+ */
+public class NodeSnapshot {
+    private static final int MAGIC = 0x534E4150;
+    private static final int HEADER_SIZE = 12;
+
+    private final int nodeId;
+    private final int membershipVersion;
+    private final int coordinatorId;
+    private final List<Node> members;
+    private final int previousId;
+    private final List<ShardState> shards;
+
+    /**
+     * State of one shard.
+     */
+    public static class ShardState {
+        private final int epoch;
+        private final int hop;
+        private final PostLog store;
+        private final List<Post> pendingPosts;
+        private final List<Long> pendingDeletes;
+        private final long made;
+
+        /**
+         * ShardState constructor
+         * @param epoch token epoch last seen
+         * @param hop token hop last seen
+         * @param store replica, see PostStore.snapshot
+         * @param pendingPosts posts waiting for the token
+         * @param pendingDeletes IDs of pulled posts whose deletes are waiting for the token
+         * @param made posts the node had made from its queue, copied along with pendingPosts
+         */
+        public ShardState(int epoch, int hop, PostLog store, List<Post> pendingPosts, List<Long> pendingDeletes,
+                          long made) {
+            this.epoch = epoch;
+            this.hop = hop;
+            this.store = store;
+            this.pendingPosts = pendingPosts;
+            this.pendingDeletes = pendingDeletes;
+            this.made = made;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        public int getHop() {
+            return hop;
+        }
+
+        public PostLog getStore() {
+            return store;
+        }
+
+        public List<Post> getPendingPosts() {
+            return pendingPosts;
+        }
+
+        public List<Long> getPendingDeletes() {
+            return pendingDeletes;
+        }
+
+        public long getMade() {
+            return made;
+        }
+
+        private int size() {
+            int size = WireCodec.varintSize(epoch) + WireCodec.varintSize(hop) + WireCodec.snapshotSize(store)
+                    + WireCodec.varintSize(pendingPosts.size()) + WireCodec.varintSize(pendingDeletes.size());
+            for (Post post : pendingPosts)
+                size += WireCodec.postSize(post);
+            for (long postId : pendingDeletes)
+                size += WireCodec.varlongSize(postId);
+            return size + WireCodec.varlongSize(made);
+        }
+
+        private void write(ByteBuffer buffer) {
+            WireCodec.writeVarint(buffer, epoch);
+            WireCodec.writeVarint(buffer, hop);
+            WireCodec.writeSnapshot(buffer, store);
+            WireCodec.writeVarint(buffer, pendingPosts.size());
+            for (Post post : pendingPosts)
+                WireCodec.writePost(buffer, post);
+            WireCodec.writeVarint(buffer, pendingDeletes.size());
+            for (long postId : pendingDeletes)
+                WireCodec.writeVarlong(buffer, postId);
+            WireCodec.writeVarlong(buffer, made);
+        }
+
+        private static ShardState read(ByteBuffer buffer) {
+            int epoch = WireCodec.readVarint(buffer);
+            int hop = WireCodec.readVarint(buffer);
+            PostLog store = WireCodec.readSnapshot(buffer);
+            ArrayList<Post> pendingPosts = new ArrayList<>();
+            for (int i = WireCodec.readVarint(buffer); i > 0; i--)
+                pendingPosts.add(WireCodec.readPost(buffer));
+            ArrayList<Long> pendingDeletes = new ArrayList<>();
+            for (int i = WireCodec.readVarint(buffer); i > 0; i--)
+                pendingDeletes.add(WireCodec.readVarlong(buffer));
+            return new ShardState(epoch, hop, store, pendingPosts, pendingDeletes, WireCodec.readVarlong(buffer));
+        }
+    }
+
+    /**
+     * NodeSnapshot constructor
+     * @param nodeId ID of node the snapshot was taken from
+     * @param membershipVersion version of the node's membership view
+     * @param coordinatorId coordinator in the view
+     * @param members members of the view, in ring order
+     * @param previousId ID of the node's previous node, -1 if none
+     * @param shards state of each shard, in shard order
+     */
+    public NodeSnapshot(int nodeId, int membershipVersion, int coordinatorId, List<Node> members, int previousId,
+                        List<ShardState> shards) {
+        this.nodeId = nodeId;
+        this.membershipVersion = membershipVersion;
+        this.coordinatorId = coordinatorId;
+        this.members = members;
+        this.previousId = previousId;
+        this.shards = shards;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getMembershipVersion() {
+        return membershipVersion;
+    }
+
+    public int getCoordinatorId() {
+        return coordinatorId;
+    }
+
+    public List<Node> getMembers() {
+        return members;
+    }
+
+    public int getPreviousId() {
+        return previousId;
+    }
+
+    public List<ShardState> getShards() {
+        return shards;
+    }
+
+    /**
+     * Writes the snapshot, replacing any older one.
+     * @param path file to write to
+     * @throws IOException if the snapshot cannot be written
+     */
+    public void write(Path path) throws IOException {
+        int size = WireCodec.varintSize(nodeId) + WireCodec.varintSize(membershipVersion)
+                + WireCodec.varintSize(coordinatorId) + WireCodec.nodesSize(members)
+                + WireCodec.varintSize(previousId) + WireCodec.varintSize(shards.size());
+        for (ShardState shard : shards)
+            size += shard.size();
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + size);
+        buffer.position(HEADER_SIZE);
+        WireCodec.writeVarint(buffer, nodeId);
+        WireCodec.writeVarint(buffer, membershipVersion);
+        WireCodec.writeVarint(buffer, coordinatorId);
+        WireCodec.writeNodes(buffer, members);
+        WireCodec.writeVarint(buffer, previousId);
+        WireCodec.writeVarint(buffer, shards.size());
+        for (ShardState shard : shards)
+            shard.write(buffer);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), HEADER_SIZE, size);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, size);
+        buffer.putInt(8, (int) crc.getValue());
+
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot written by write.
+     * @param path file to read
+     * @return snapshot, or null if there is none
+     * @throws IOException if the file cannot be read or is not a valid snapshot
+     */
+    public static NodeSnapshot read(Path path) throws IOException {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+            throw new IOException("Not a snapshot: " + path);
+        int size = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (size != buffer.remaining())
+            throw new IOException("Truncated snapshot: " + path);
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), HEADER_SIZE, size);
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("Corrupt snapshot: " + path);
+
+        try {
+            int nodeId = WireCodec.readVarint(buffer);
+            int membershipVersion = WireCodec.readVarint(buffer);
+            int coordinatorId = WireCodec.readVarint(buffer);
+            List<Node> members = WireCodec.readNodes(buffer);
+            int previousId = WireCodec.readVarint(buffer);
+            ArrayList<ShardState> shards = new ArrayList<>();
+            for (int i = WireCodec.readVarint(buffer); i > 0; i--)
+                shards.add(ShardState.read(buffer));
+            return new NodeSnapshot(nodeId, membershipVersion, coordinatorId, members, previousId, shards);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // written in an older format
+            throw new IOException("Malformed snapshot: " + path);
+        }
+    }
+}
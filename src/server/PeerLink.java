@@ -0,0 +1,175 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Long-lived connection from one ServerNode to another. Opened with a LINK handshake, after which
+ * messages are written as frames with no per-message acknowledgement. Frames are binary (see WireCodec) if
+ * both ends agree to it during the handshake, otherwise a command line followed by a payload line.
+ * Reconnects automatically if the connection drops.
+ */
+public class PeerLink {
+    public static final String LINK = "LINK";
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+
+    private final Node node;
+    private final FrameHandler handler;
+    private final boolean preferBinary;
+    private Socket socket;
+    private OutputStream out;
+    private boolean binary;
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Callback for frames arriving on a link.
+     */
+    public interface FrameHandler {
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * PeerLink constructor
+     * @param node node at the far end of the link
+     * @param handler handler for frames sent back by the far end
+     * @param preferBinary whether to ask the far end for binary frames
+     */
+    public PeerLink(Node node, FrameHandler handler, boolean preferBinary) {
+        this.node = node;
+        this.handler = handler;
+        this.preferBinary = preferBinary;
+    }
+
+    public Node getNode() {
+        return node;
+    }
+
+    /**
+     * Opens the connection if it is not already open. Gives up if the far end does not accept and answer the
+     * handshake within CONNECT_TIMEOUT_MS each.
+     * @throws IOException if the far end cannot be reached or refuses the link
+     */
+    public synchronized void connect() throws IOException {
+        if (socket != null && !socket.isClosed())
+            return;
+
+        Socket s = new Socket();
+        InputStream reader;
+        OutputStream writer;
+        String msg;
+        try {
+            s.connect(new InetSocketAddress(node.getHost(), node.getPort()), CONNECT_TIMEOUT_MS);
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(CONNECT_TIMEOUT_MS);
+            reader = new BufferedInputStream(s.getInputStream());
+            writer = new BufferedOutputStream(s.getOutputStream(), BUFFER_SIZE);
+
+            String request = preferBinary ? LINK + " " + WireCodec.BINARY_MODE : LINK;
+            writer.write((request + "\n").getBytes(StandardCharsets.UTF_8));
+            writer.flush();
+            msg = WireCodec.readLine(reader);
+            if (msg == null || !msg.startsWith("OK"))
+                throw new IOException("Server " + node.getId() + " refused link.");
+            s.setSoTimeout(0);
+        } catch (IOException e) {
+            s.close();
+            throw e;
+        }
+
+        socket = s;
+        out = writer;
+        binary = msg.equals("OK " + WireCodec.BINARY_MODE);
+
+        boolean binaryLink = binary;
+        Thread readerThread = new Thread(() -> readFrames(s, reader, binaryLink));
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Sends a frame, reconnecting once if the connection has dropped.
+     * @param frame frame to be sent
+     * @throws IOException if the frame could not be delivered
+     */
+    public synchronized void send(Frame frame) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                connect();
+                writeFrame(frame);
+                return;
+            } catch (IOException e) {
+                close();
+                if (attempt > 0)
+                    throw e;
+            }
+        }
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+        if (binary) {
+            int size = WireCodec.encodedSize(frame);
+            if (size > writeBuffer.capacity())
+                writeBuffer = ByteBuffer.allocate(Math.max(size, writeBuffer.capacity() * 2));
+            writeBuffer.clear();
+            WireCodec.encode(frame, writeBuffer);
+            out.write(writeBuffer.array(), 0, writeBuffer.position());
+        } else {
+            out.write((frame.getCommand() + "\n" + frame.getPayload() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        out.flush();
+    }
+
+    /**
+     * Closes the underlying connection. The next send will reconnect.
+     */
+    public synchronized void close() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+        socket = null;
+        out = null;
+    }
+
+    private void readFrames(Socket s, InputStream reader, boolean binaryLink) {
+        readFrames(reader, binaryLink, handler);
+        synchronized (this) {
+            if (socket == s)
+                close();
+        }
+    }
+
+    /**
+     * Reads frames from a connection until it is closed, passing each to the handler.
+     * @param in stream for the connection, positioned after the LINK handshake
+     * @param binaryLink whether the link carries binary frames
+     * @param handler handler for received frames
+     */
+    public static void readFrames(InputStream in, boolean binaryLink, FrameHandler handler) {
+        try {
+            ByteBuffer scratch = ByteBuffer.allocate(BUFFER_SIZE);
+            while (true) {
+                Frame frame;
+                if (binaryLink) {
+                    frame = WireCodec.readFrame(in, scratch);
+                } else {
+                    String command = WireCodec.readLine(in);
+                    String payload = command == null ? null : WireCodec.readLine(in);
+                    frame = payload == null ? null : Frame.fromText(command, payload);
+                }
+                if (frame == null)
+                    break;
+                handler.onFrame(frame);
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // connection dropped, or a frame was truncated or garbled; the caller closes the link and the owner
+            // reconnects on next send
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package server;
+
+/**
+ * A post waiting in a node's queue for the token, with an optional callback run once it has been committed.
+ */
+public class PendingPost {
+    private final Post post;
+    private final Runnable onCommit;
+    private final long queuedAt = System.nanoTime();
+
+    /**
+     * PendingPost constructor
+     * @param post post to be made
+     * @param onCommit run once the post has been committed, may be null
+     */
+    public PendingPost(Post post, Runnable onCommit) {
+        this.post = post;
+        this.onCommit = onCommit;
+    }
+
+    public Post getPost() {
+        return post;
+    }
+
+    /**
+     * @return System.nanoTime() at which the post was queued
+     */
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
+    /**
+     * Runs the commit callback, if there is one.
+     */
+    public void committed() {
+        if (onCommit != null)
+            onCommit.run();
+    }
+}
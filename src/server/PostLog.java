@@ -0,0 +1,120 @@
+package server;
+
+import java.util.ArrayList;
+
+/**
+ * Delta log carried by the token. Every change to the shared post store is appended here with the next sequence
+ * number, so each node can bring its replica up to date as the token passes. An entry stays in the log until
+ * the token returns to the node that appended it, by which point every other node has applied it.
+ */
+public class PostLog {
+    public static final byte INSERT = 1;
+    public static final byte DELETE = 2;
+
+    private long nextSeq;
+    private final ArrayList<Entry> entries;
+
+    /**
+     * A single change to the post store.
+     */
+    public static class Entry {
+        private final long seq;
+        private final int origin;
+        private final byte type;
+        private final long postId;
+        private final Post post;
+
+        /**
+         * Entry constructor
+         * @param seq sequence number of entry
+         * @param origin ID of node that appended entry
+         * @param type INSERT or DELETE
+         * @param postId ID of post inserted or deleted. Inserted posts take the sequence number of their entry.
+         * @param post post inserted, null for DELETE
+         */
+        public Entry(long seq, int origin, byte type, long postId, Post post) {
+            this.seq = seq;
+            this.origin = origin;
+            this.type = type;
+            this.postId = postId;
+            this.post = post;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public int getOrigin() {
+            return origin;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public long getPostId() {
+            return postId;
+        }
+
+        public Post getPost() {
+            return post;
+        }
+    }
+
+    public PostLog() {
+        this(0, new ArrayList<>());
+    }
+
+    /**
+     * PostLog constructor
+     * @param nextSeq sequence number the next entry will take
+     * @param entries entries in sequence order
+     */
+    public PostLog(long nextSeq, ArrayList<Entry> entries) {
+        this.nextSeq = nextSeq;
+        this.entries = entries;
+    }
+
+    public long getNextSeq() {
+        return nextSeq;
+    }
+
+    public ArrayList<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Appends an insert.
+     * @param origin ID of node appending the entry
+     * @param post post to be inserted
+     * @return ID assigned to the post
+     */
+    public long appendInsert(int origin, Post post) {
+        long seq = nextSeq++;
+        entries.add(new Entry(seq, origin, INSERT, seq, post));
+        return seq;
+    }
+
+    /**
+     * Appends a delete.
+     * @param origin ID of node appending the entry
+     * @param postId ID of post to be deleted
+     */
+    public void appendDelete(int origin, long postId) {
+        long seq = nextSeq++;
+        entries.add(new Entry(seq, origin, DELETE, postId, null));
+    }
+
+    /**
+     * Drops the entries a node appended on the previous lap. These are always at the front of the log.
+     * @param origin ID of node the token has returned to
+     * @return number of entries dropped
+     */
+    public int trim(int origin) {
+        int count = 0;
+        while (count < entries.size() && entries.get(count).getOrigin() == origin)
+            count++;
+        entries.subList(0, count).clear();
+        return count;
+    }
+}
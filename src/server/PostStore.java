@@ -0,0 +1,178 @@
+package server;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A node's local replica of the shared post store. Kept up to date by applying the token's PostLog, so reads
+ * never leave the node.
+ * Posts are held by ID, with a FIFO mailbox of post IDs per recipient, so taking a post is O(1) and posts reach
+ * each recipient in the order they were inserted. A delete removes the post and drops its ID from the mailbox,
+ * along with any IDs in front of it whose posts have already gone, so a replica where the recipient never pulls
+ * does not keep an ID for every post ever sent.
+ * Changes from the token are applied by one thread at a time, but posts can be taken from any number of threads
+ * at once, alongside them. Whoever removes a post from the map owns it, so each post is taken exactly once, and a
+ * mailbox is only dropped, or added to, inside its map entry's compute, so no insert can land in a dropped
+ * mailbox.
+ * The posts themselves are kept in a PostTable, on the heap by default.
+ */
+public class PostStore {
+    private final PostTable posts;
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<Long>> mailboxes = new ConcurrentHashMap<>();
+    private volatile long lastAppliedSeq = -1;
+
+    public PostStore() {
+        this(new HeapPostTable());
+    }
+
+    /**
+     * PostStore constructor
+     * @param posts table to keep the posts in
+     */
+    public PostStore(PostTable posts) {
+        this.posts = posts;
+    }
+
+    public long getLastAppliedSeq() {
+        return lastAppliedSeq;
+    }
+
+    public int size() {
+        return posts.size();
+    }
+
+    /**
+     * @return bytes of posts held outside the Java heap
+     */
+    public long offHeapBytes() {
+        return posts.offHeapBytes();
+    }
+
+    /**
+     * Applies every entry in the log that this replica has not seen yet.
+     * @param log log carried by the token
+     * @return number of entries applied
+     */
+    public int apply(PostLog log) {
+        int applied = 0;
+        for (PostLog.Entry entry : log.getEntries()) {
+            if (entry.getSeq() <= lastAppliedSeq)
+                continue;
+            apply(entry);
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Applies a single entry.
+     * @param entry entry to be applied
+     */
+    public void apply(PostLog.Entry entry) {
+        if (entry.getType() == PostLog.INSERT) {
+            Post post = entry.getPost();
+            long postId = entry.getPostId();
+            posts.put(postId, post);
+            mailboxes.compute(post.getRecipient(), (recipient, mailbox) -> {
+                if (mailbox == null)
+                    mailbox = new ConcurrentLinkedQueue<>();
+                mailbox.add(postId);
+                return mailbox;
+            });
+        } else {
+            Post removed = posts.remove(entry.getPostId());
+            if (removed != null)
+                dropFromMailbox(removed.getRecipient(), entry.getPostId());
+        }
+        lastAppliedSeq = Math.max(lastAppliedSeq, entry.getSeq());
+    }
+
+    /**
+     * Copies every post in this replica, so that a joining node can start from it.
+     * @param origin ID of node taking the snapshot, recorded as the origin of every post
+     * @return posts as inserts in ID order, which is also mailbox order, with nextSeq one past the last applied
+     */
+    public PostLog snapshot(int origin) {
+        Long[] ids = posts.ids().toArray(new Long[0]);
+        Arrays.sort(ids);
+        ArrayList<PostLog.Entry> entries = new ArrayList<>(ids.length);
+        for (Long postId : ids) {
+            Post post = posts.get(postId);
+            if (post != null)
+                entries.add(new PostLog.Entry(postId, origin, PostLog.INSERT, postId, post));
+        }
+        return new PostLog(lastAppliedSeq + 1, entries);
+    }
+
+    /**
+     * Replaces the contents of this replica with a snapshot taken by another node.
+     * @param snapshot snapshot to load
+     */
+    public void load(PostLog snapshot) {
+        posts.clear();
+        mailboxes.clear();
+        for (PostLog.Entry entry : snapshot.getEntries())
+            apply(entry);
+        lastAppliedSeq = snapshot.getNextSeq() - 1;
+    }
+
+    /**
+     * Removes the oldest post for a recipient.
+     * @param recipient recipient of post to be retrieved
+     * @return ID and post, or null if recipient has no posts
+     */
+    public Map.Entry<Long, Post> take(String recipient) {
+        ConcurrentLinkedQueue<Long> mailbox = mailboxes.get(recipient);
+        if (mailbox == null)
+            return null;
+
+        Map.Entry<Long, Post> taken = null;
+        Long postId;
+        while (taken == null && (postId = mailbox.poll()) != null) {
+            Post post = posts.remove(postId);
+            if (post != null)
+                taken = new AbstractMap.SimpleImmutableEntry<>(postId, post);
+        }
+
+        if (mailbox.isEmpty())
+            mailboxes.computeIfPresent(recipient, (r, current) -> current.isEmpty() ? null : current);
+        return taken;
+    }
+
+    /**
+     * Removes a post that has already been pulled from this node, but whose delete has not reached the ring yet.
+     * @param postId ID of post to be removed
+     */
+    public void remove(long postId) {
+        Post removed = posts.remove(postId);
+        if (removed != null)
+            dropFromMailbox(removed.getRecipient(), postId);
+    }
+
+    /**
+     * Drops a removed post's ID from its recipient's mailbox. Deletes usually arrive in mailbox order, so the ID is
+     * normally found at the front, after any others whose posts have gone; only otherwise is the mailbox searched.
+     * @param recipient recipient of removed post
+     * @param postId ID of removed post
+     */
+    private void dropFromMailbox(String recipient, long postId) {
+        ConcurrentLinkedQueue<Long> mailbox = mailboxes.get(recipient);
+        if (mailbox == null)
+            return;
+
+        boolean dropped = false;
+        Long head;
+        while ((head = mailbox.peek()) != null && !posts.contains(head)) {
+            dropped |= head == postId;
+            mailbox.remove(head);
+        }
+        if (!dropped)
+            mailbox.remove(postId);
+        if (mailbox.isEmpty())
+            mailboxes.computeIfPresent(recipient, (r, current) -> current.isEmpty() ? null : current);
+    }
+}
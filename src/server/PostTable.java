@@ -0,0 +1,67 @@
+package server;
+
+import java.util.Collection;
+
+/**
+ * Where a PostStore keeps the posts themselves, by post ID. Puts and clears come from one thread at a time, while
+ * gets and removes may come from any number of threads alongside them. Whoever removes a post owns it.
+ */
+public interface PostTable {
+    /**
+     * Stores a post, replacing any post already stored under the ID.
+     * @param postId ID of post
+     * @param post post to be stored
+     */
+    void put(long postId, Post post);
+
+    /**
+     * @param postId ID of post
+     * @return post, or null if none is stored under the ID
+     */
+    Post get(long postId);
+
+    /**
+     * @param postId ID of post
+     * @return true if a post is stored under the ID
+     */
+    boolean contains(long postId);
+
+    /**
+     * @param postId ID of post to be removed
+     * @return post removed, or null if none was stored under the ID
+     */
+    Post remove(long postId);
+
+    int size();
+
+    /**
+     * @return IDs of stored posts, a live view that may change while it is read
+     */
+    Collection<Long> ids();
+
+    /**
+     * Removes every post.
+     */
+    void clear();
+
+    /**
+     * @return bytes held outside the Java heap
+     */
+    long offHeapBytes();
+
+    /**
+     * Creates a post table by name.
+     * @param name heap or compact
+     * @return post table
+     */
+    static PostTable create(String name) {
+        switch (name.toLowerCase()) {
+            case "heap":
+                return new HeapPostTable();
+            case "compact":
+                return new CompactPostTable();
+            default:
+                throw new IllegalArgumentException("Unknown post storage " + name);
+        }
+    }
+}
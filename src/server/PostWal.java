@@ -0,0 +1,411 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead log for one shard's replica, kept in memory-mapped segment files under a directory.
+ * Every entry the replica applies is appended before the token moves on, and forced to disk according to the
+ * sync policy, so a restarted node can rebuild its mailboxes by replaying the log. Each record is a length and
+ * a CRC32C followed by the record itself, so a torn write at the end of the log is found and dropped on recovery.
+ * Segments are deleted from the front once all their posts have been pulled. If a few old posts keep several
+ * segments alive, the whole replica is written out as a snapshot in a new segment and everything before it goes.
+ * After each batch of its own posts the node also records how many posts it has made from its queue, and
+ * snapshots carry that count, so the latest count survives segments being deleted.
+ */
+public class PostWal {
+    public enum Sync {
+        BATCH, INTERVAL, NEVER;
+
+        /**
+         * Looks up a sync policy by name.
+         * @param name batch, interval or never
+         * @return sync policy
+         */
+        public static Sync named(String name) {
+            for (Sync sync : values()) {
+                if (sync.name().equalsIgnoreCase(name))
+                    return sync;
+            }
+            throw new IllegalArgumentException("Unknown WAL sync policy " + name);
+        }
+    }
+
+    private static final byte ENTRY = 1;
+    private static final byte SNAPSHOT = 2;
+    private static final byte MADE = 3;
+    private static final int HEADER_SIZE = 8;
+    private static final int COMPACT_AFTER_SEGMENTS = 4;
+    private static final String SUFFIX = ".seg";
+    private static final Pattern SEGMENT_NAME = Pattern.compile("\\d{20}\\.seg");
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final Sync sync;
+    private final ArrayDeque<Segment> sealed = new ArrayDeque<>();
+    private final HashMap<Long, Segment> livePosts = new HashMap<>();
+    private final CRC32C crc = new CRC32C();
+    private Segment active;
+    private long nextSegment = 0;
+    private long made = 0;
+
+    /**
+     * One segment file, mapped whole.
+     */
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int synced = 0;
+        private int live = 0;
+        private int inserts = 0;
+
+        private Segment(Path path, int size) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+
+        private void force() {
+            int position = buffer.position();
+            if (position > synced) {
+                buffer.force(synced, position - synced);
+                synced = position;
+            }
+        }
+
+        private void delete() throws IOException {
+            channel.close();
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * PostWal constructor. Call recover before appending.
+     * @param dir directory holding the segment files, created if missing
+     * @param segmentBytes size of each segment file
+     * @param sync when appended records are forced to disk
+     * @throws IOException if the directory cannot be created
+     */
+    public PostWal(Path dir, int segmentBytes, Sync sync) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.sync = sync;
+        Files.createDirectories(dir);
+    }
+
+    public Sync getSync() {
+        return sync;
+    }
+
+    /**
+     * @return posts the node has made from its queue, as last recorded by appendMade
+     */
+    public synchronized long getMade() {
+        return made;
+    }
+
+    /**
+     * Replays every segment into a replica, oldest first, stopping at the first record that is torn or corrupt.
+     * A segment may end in unused space, which is skipped, but anything else that is not a whole record is torn:
+     * it is erased along with every later segment, since pages of a mapped file can reach the disk in any order
+     * and records after it may not follow on from what was replayed. The segment it was found in is then appended
+     * to, otherwise the last one. Files in the directory not named as segments are left alone.
+     * @param store empty replica to rebuild
+     * @return number of records replayed
+     * @throws IOException if a segment cannot be read or a later segment cannot be deleted
+     */
+    public synchronized int recover(PostStore store) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(dir)) {
+            paths = files.filter(p -> SEGMENT_NAME.matcher(p.getFileName().toString()).matches()).sorted()
+                    .collect(Collectors.toList());
+        }
+
+        int replayed = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            String name = paths.get(i).getFileName().toString();
+            nextSegment = Math.max(nextSegment, Long.parseLong(name.substring(0, name.length() - SUFFIX.length())) + 1);
+            if (active != null)
+                sealed.add(active);
+            active = new Segment(paths.get(i), 0);
+
+            ByteBuffer record;
+            while ((record = readRecord(active.buffer)) != null) {
+                replay(record, store);
+                replayed++;
+            }
+            active.synced = active.buffer.position();
+
+            if (!isUnused(active.buffer)) {
+                erase(active.buffer);
+                for (Path later : paths.subList(i + 1, paths.size()))
+                    Files.delete(later);
+                break;
+            }
+        }
+
+        if (active == null)
+            active = newSegment(segmentBytes);
+        return replayed;
+    }
+
+    /**
+     * Reads the next record from a segment, leaving the position after it.
+     * @param buffer segment positioned at a record
+     * @return record without its header, or null at the end of the log
+     */
+    private ByteBuffer readRecord(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_SIZE)
+            return null;
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            buffer.position(start);
+            return null;
+        }
+
+        ByteBuffer record = buffer.slice(buffer.position(), length);
+        crc.reset();
+        crc.update(record.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            buffer.position(start);
+            return null;
+        }
+        buffer.position(buffer.position() + length);
+        return record;
+    }
+
+    /**
+     * @param buffer segment positioned after its last whole record
+     * @return true if the rest of the segment has never been written
+     */
+    private static boolean isUnused(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Zeroes the rest of a segment, from a torn record on, and forces it to disk.
+     * @param buffer segment positioned at the torn record
+     */
+    private static void erase(MappedByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++)
+            buffer.put(i, (byte) 0);
+        buffer.force();
+    }
+
+    private void replay(ByteBuffer record, PostStore store) throws IOException {
+        byte type = record.get();
+        if (type == MADE) {
+            made = WireCodec.readVarlong(record);
+            return;
+        }
+        if (type == SNAPSHOT) {
+            made = WireCodec.readVarlong(record);
+            PostLog snapshot = WireCodec.readSnapshot(record);
+            store.load(snapshot);
+            dropSealed();
+            trackSnapshot(snapshot);
+            return;
+        }
+
+        PostLog.Entry entry = readEntry(record);
+        store.apply(entry);
+        track(entry);
+    }
+
+    /**
+     * Appends an entry the replica is about to apply. It is durable once commit or force has run.
+     * @param entry entry to be appended
+     * @throws IOException if a new segment cannot be created
+     */
+    public synchronized void append(PostLog.Entry entry) throws IOException {
+        int size = 1 + WireCodec.varlongSize(entry.getSeq()) + WireCodec.varintSize(entry.getOrigin()) + 1;
+        if (entry.getType() == PostLog.INSERT)
+            size += WireCodec.postSize(entry.getPost());
+        else
+            size += WireCodec.varlongSize(entry.getPostId());
+
+        ByteBuffer buffer = reserve(size);
+        buffer.put(ENTRY);
+        buffer.put(entry.getType());
+        WireCodec.writeVarlong(buffer, entry.getSeq());
+        WireCodec.writeVarint(buffer, entry.getOrigin());
+        if (entry.getType() == PostLog.INSERT)
+            WireCodec.writePost(buffer, entry.getPost());
+        else
+            WireCodec.writeVarlong(buffer, entry.getPostId());
+        seal(buffer, size);
+        track(entry);
+    }
+
+    /**
+     * Appends the number of posts the node has made from its queue so far. Called after the entries of a batch
+     * that made some, so that it is durable along with them.
+     * @param made posts made so far
+     * @throws IOException if a new segment cannot be created
+     */
+    public synchronized void appendMade(long made) throws IOException {
+        int size = 1 + WireCodec.varlongSize(made);
+        ByteBuffer buffer = reserve(size);
+        buffer.put(MADE);
+        WireCodec.writeVarlong(buffer, made);
+        seal(buffer, size);
+        this.made = made;
+    }
+
+    private static PostLog.Entry readEntry(ByteBuffer record) {
+        byte type = record.get();
+        long seq = WireCodec.readVarlong(record);
+        int origin = WireCodec.readVarint(record);
+        if (type == PostLog.INSERT)
+            return new PostLog.Entry(seq, origin, type, seq, WireCodec.readPost(record));
+        return new PostLog.Entry(seq, origin, type, WireCodec.readVarlong(record), null);
+    }
+
+    /**
+     * Makes room for a record in the active segment, moving on to a new segment if it does not fit.
+     * @param size size of the record, excluding its header
+     * @return active segment, positioned after the header
+     */
+    private ByteBuffer reserve(int size) throws IOException {
+        if (active.buffer.remaining() < HEADER_SIZE + size) {
+            active.force();
+            sealed.add(active);
+            active = newSegment(Math.max(segmentBytes, HEADER_SIZE + size));
+        }
+        active.buffer.position(active.buffer.position() + HEADER_SIZE);
+        return active.buffer;
+    }
+
+    /**
+     * Fills in the header of the record just written.
+     * @param buffer active segment, positioned after the record
+     * @param size size of the record, excluding its header
+     */
+    private void seal(ByteBuffer buffer, int size) {
+        int start = buffer.position() - size;
+        crc.reset();
+        crc.update(buffer.slice(start, size));
+        buffer.putInt(start - HEADER_SIZE, size);
+        buffer.putInt(start - HEADER_SIZE + 4, (int) crc.getValue());
+    }
+
+    private Segment newSegment(int size) throws IOException {
+        return new Segment(dir.resolve(String.format("%020d", nextSegment++) + SUFFIX), size);
+    }
+
+    /**
+     * Keeps count of how many posts in each segment have not been pulled yet.
+     * @param entry entry appended or replayed
+     */
+    private void track(PostLog.Entry entry) {
+        if (entry.getType() == PostLog.INSERT) {
+            livePosts.put(entry.getPostId(), active);
+            active.live++;
+            active.inserts++;
+        } else {
+            Segment segment = livePosts.remove(entry.getPostId());
+            if (segment != null)
+                segment.live--;
+        }
+    }
+
+    private void trackSnapshot(PostLog snapshot) {
+        livePosts.clear();
+        for (PostLog.Entry entry : snapshot.getEntries())
+            track(entry);
+    }
+
+    /**
+     * Called once the token's changes have all been appended, before the token is passed on. Forces them to disk
+     * if syncing every batch, and deletes segments whose posts have all been pulled.
+     * @throws IOException if a segment cannot be deleted
+     */
+    public synchronized void commit() throws IOException {
+        if (sync == Sync.BATCH)
+            active.force();
+        while (!sealed.isEmpty() && sealed.peekFirst().live == 0)
+            sealed.pollFirst().delete();
+    }
+
+    /**
+     * Forces everything appended so far to disk.
+     */
+    public synchronized void force() {
+        active.force();
+    }
+
+    /**
+     * @return true if enough old segments are being kept for only a few posts that a snapshot would be smaller
+     */
+    public synchronized boolean needsSnapshot() {
+        if (sealed.size() < COMPACT_AFTER_SEGMENTS)
+            return false;
+        long live = 0;
+        long inserts = 0;
+        for (Segment segment : sealed) {
+            live += segment.live;
+            inserts += segment.inserts;
+        }
+        return live * 2 < inserts;
+    }
+
+    /**
+     * Writes the whole replica out to a new segment and deletes every segment before it.
+     * @param snapshot snapshot of the replica, see PostStore.snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    public synchronized void snapshot(PostLog snapshot) throws IOException {
+        int size = 1 + WireCodec.varlongSize(made) + WireCodec.snapshotSize(snapshot);
+        active.force();
+        sealed.add(active);
+        active = newSegment(Math.max(segmentBytes, HEADER_SIZE + size));
+
+        ByteBuffer buffer = reserve(size);
+        buffer.put(SNAPSHOT);
+        WireCodec.writeVarlong(buffer, made);
+        WireCodec.writeSnapshot(buffer, snapshot);
+        seal(buffer, size);
+        active.force();
+
+        dropSealed();
+        trackSnapshot(snapshot);
+    }
+
+    private void dropSealed() throws IOException {
+        ArrayList<Segment> dropped = new ArrayList<>(sealed);
+        sealed.clear();
+        for (Segment segment : dropped)
+            segment.delete();
+    }
+
+    /**
+     * Forces everything to disk and closes the segment files.
+     * @throws IOException if a file cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        active.force();
+        active.channel.close();
+        for (Segment segment : sealed)
+            segment.channel.close();
+    }
+}
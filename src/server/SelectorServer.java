@@ -0,0 +1,249 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Supplier;
+
+/**
+ * Single-threaded non-blocking server. All connections are multiplexed over one Selector, so a slow client
+ * never holds up any other connection.
+ */
+public class SelectorServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    // room for a text mode STATE line carrying a large replica; anything longer is refused
+    private static final int MAX_LINE_BYTES = 64 << 20;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final Supplier<LineProtocol> protocolFactory;
+    private final AsyncLogger logger;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final ConcurrentLinkedQueue<SelectionKey> keysWithOutput = new ConcurrentLinkedQueue<>();
+
+    /**
+     * State kept for each open connection.
+     */
+    private static class Connection {
+        private final LineProtocol protocol;
+        private final ArrayDeque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+        private final ConcurrentLinkedQueue<String> outbox = new ConcurrentLinkedQueue<>();
+        private byte[] partialLine = new byte[256];
+        private int partialLength = 0;
+        private ByteBuffer frameBuffer = null;
+
+        private Connection(LineProtocol protocol) {
+            this.protocol = protocol;
+        }
+
+        private void appendByte(byte b) throws IOException {
+            if (partialLength == MAX_LINE_BYTES)
+                throw new IOException("Line longer than " + MAX_LINE_BYTES + " bytes");
+            if (partialLength == partialLine.length) {
+                byte[] bigger = new byte[Math.min(partialLine.length * 2, MAX_LINE_BYTES)];
+                System.arraycopy(partialLine, 0, bigger, 0, partialLength);
+                partialLine = bigger;
+            }
+            partialLine[partialLength++] = b;
+        }
+
+        private String takeLine() {
+            int length = partialLength;
+            if (length > 0 && partialLine[length - 1] == '\r')
+                length--;
+            partialLength = 0;
+            return new String(partialLine, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * SelectorServer constructor
+     * @param port local port to listen on
+     * @param protocolFactory creates the protocol handler for each accepted connection
+     * @param logger log for connections closed because handling them failed
+     * @throws IOException if port cannot be bound
+     */
+    public SelectorServer(int port, Supplier<LineProtocol> protocolFactory, AsyncLogger logger) throws IOException {
+        this.protocolFactory = protocolFactory;
+        this.logger = logger;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs the event loop. Does not return unless the selector fails.
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        while (true) {
+            selector.select();
+            flushOutboxes();
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                try {
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                        accept();
+                    else {
+                        if (key.isReadable())
+                            read(key);
+                        if (key.isValid() && key.isWritable())
+                            write(key);
+                    }
+                } catch (IOException e) {
+                    close(key);
+                } catch (RuntimeException e) {
+                    // a malformed message only costs the connection it came in on, never the event loop
+                    logger.error("ERROR closing connection after " + e + ".");
+                    close(key);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(protocolFactory.get());
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connection.protocol.attach(line -> {
+                connection.outbox.add(line);
+                keysWithOutput.add(key);
+                selector.wakeup();
+            });
+        }
+    }
+
+    /**
+     * Moves lines sent from other threads onto their connections' write queues.
+     */
+    private void flushOutboxes() {
+        SelectionKey key;
+        while ((key = keysWithOutput.poll()) != null) {
+            if (!key.isValid())
+                continue;
+            Connection connection = (Connection) key.attachment();
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = connection.outbox.poll()) != null)
+                sb.append(line).append('\n');
+            if (sb.length() == 0)
+                continue;
+
+            connection.pendingWrites.add(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+            try {
+                write(key);
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            close(key);
+            return;
+        }
+        readBuffer.flip();
+
+        ArrayList<String> replies = new ArrayList<>();
+        while (readBuffer.hasRemaining() && !connection.protocol.isFinished() && !connection.protocol.isBinary()) {
+            byte b = readBuffer.get();
+            if (b == '\n')
+                connection.protocol.onLine(connection.takeLine(), replies);
+            else
+                connection.appendByte(b);
+        }
+
+        if (connection.protocol.isBinary() && readBuffer.hasRemaining())
+            readFrames(connection);
+
+        if (!replies.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            for (String reply : replies)
+                sb.append(reply).append('\n');
+            connection.pendingWrites.add(ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+        write(key);
+    }
+
+    /**
+     * Appends what is left of the read buffer to the connection's frame buffer and handles every complete frame.
+     * @param connection connection that has switched to binary frames
+     */
+    private void readFrames(Connection connection) {
+        if (connection.frameBuffer == null)
+            connection.frameBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        if (connection.frameBuffer.remaining() < readBuffer.remaining()) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(connection.frameBuffer.capacity() * 2,
+                    connection.frameBuffer.position() + readBuffer.remaining()));
+            connection.frameBuffer.flip();
+            bigger.put(connection.frameBuffer);
+            connection.frameBuffer = bigger;
+        }
+        connection.frameBuffer.put(readBuffer);
+        connection.frameBuffer.flip();
+
+        Frame frame;
+        while ((frame = WireCodec.decode(connection.frameBuffer)) != null)
+            connection.protocol.onFrame(frame);
+        connection.frameBuffer.compact();
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        while (!connection.pendingWrites.isEmpty()) {
+            ByteBuffer buffer = connection.pendingWrites.peek();
+            channel.write(buffer);
+            if (buffer.hasRemaining())
+                break;
+            connection.pendingWrites.poll();
+        }
+
+        if (connection.pendingWrites.isEmpty()) {
+            if (connection.protocol.isFinished()) {
+                close(key);
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection && key.isValid())
+            ((Connection) key.attachment()).protocol.closed();
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+        }
+    }
+}
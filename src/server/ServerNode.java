@@ -5,13 +5,31 @@ import com.opencsv.CSVReaderBuilder;
 
 import java.io.*;
 import java.net.*;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class ServerNode {
+    private static final long PROBE_BACKOFF_MIN_MS = 50;
+    private static final long PROBE_BACKOFF_MAX_MS = 2000;
+    private static final int MAX_BOOTSTRAP_THREADS = 256;
+    private static final int EPOCH_SEQ_SHIFT = 40;
+
     private int id;
     private String host;
     private int port;
@@ -20,16 +38,114 @@ public class ServerNode {
     private String coordinatorHost;
     private int coordinatorPort;
     private ServerSocket listener;
-    private final String HOST_FILE = "servers.csv";
-    private ArrayList<Node> nodes = new ArrayList<>();
-    private Socket serverToTalkTo;
+    private final String hostFile = System.getProperty("server.hostFile", "servers.csv");
+    private Membership membership = new Membership();
     private Node nextNode = null;
+    private Node previousNode = null;
+    private HashMap<Integer, PeerLink> links = new HashMap<>();
+    private boolean useSelector = false;
+    private boolean binaryWire = true;
+    private SelectorServer selectorServer;
+    private Executor frameExecutor = Runnable::run;
     private String loggerFileName;
-    private PrintWriter logger;
+    private AsyncLogger logger;
     private boolean hasToken = false;
-    private ArrayList<Post> postsToMake = new ArrayList<>();
+    private ArrayList<Frame> framesBeforeRing = new ArrayList<>();
     private ArrayList<Post> pullsToMake = new ArrayList<>();
-    private static ArrayList<Post> posts = new ArrayList<>();
+    private Shard[] shards = createShards(1, "heap");
+    private int maxBatchSize = 256;
+    private int maxQueued = 10000;
+    private int ringCredit = 0;
+    private boolean onDemand = false;
+    private long maxHoldNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private Metrics metrics = new Metrics();
+    private long electionStarted = 0;
+    private boolean tokenIssued = false;
+    private Election election;
+    private long heartbeatMs = 50;
+    private long failureTimeoutMs = 250;
+    private long bootstrapTimeoutMs = 30000;
+    private ScheduledExecutorService heartbeats;
+    private ScheduledExecutorService snapshots;
+    private volatile boolean ringComplete = false;
+    private long lastHeartbeatAck = 0;
+    private ArrayList<Integer> splicedOut = new ArrayList<>();
+    private boolean joining = false;
+    private ArrayList<Node> pendingJoins = new ArrayList<>();
+    private boolean leaveRequested = false;
+    private volatile boolean departed = false;
+    private String walDir = null;
+    private PostWal.Sync walSync = PostWal.Sync.BATCH;
+    private long walSyncMs = 100;
+    private int walSegmentBytes = 16 << 20;
+    private long snapshotMs = 0;
+    private long rejoinTimeoutMs = 1000;
+    private boolean restored = false;
+    private boolean bootstrapsRing = false;
+    private volatile boolean closed = false;
+    private final ConcurrentHashMap<String, CopyOnWriteArrayList<ClientSession>> subscribers = new ConcurrentHashMap<>();
+    private ExecutorService deliveries;
+
+    /**
+     * One partition of the post space, with its own token. Recipients are assigned to shards by hash, so each
+     * shard holds whole mailboxes, and writes to different shards commit independently. Holds this node's replica
+     * of the shard, the changes waiting for its token, and the token as this node last saw it. Client handlers add
+     * to the queues and take from the replica without the node lock; the queues are only drained while holding it.
+     */
+    private static class Shard {
+        private final int index;
+        private final PostStore store;
+        private final MpscQueue<PendingPost> postsToMake = new MpscQueue<>();
+        private final MpscQueue<Long> pendingDeletes = new MpscQueue<>();
+        private long lastTokenReceived = 0;
+        private volatile long lastRotationNanos = 0;
+        private int epoch = 0;
+        private int credit = 0;
+        private int hop = 0;
+        private boolean outstanding = false;
+        private int lastSentHop = 0;
+        private boolean checkPending = false;
+        // coordinator only: System.nanoTime() the SEED lap for the token was sent, 0 once the token is issued, and
+        // whether the lap is looking for an on-demand token that may have been lost, rather than issuing the first
+        private long seedStarted = 0;
+        private boolean regenerating = false;
+        private PostWal wal;
+        // posts made from postsToMake so far, kept in the write-ahead log and snapshots so that a restored snapshot
+        // can tell which of its queued posts were made after it was taken
+        private long made = 0;
+        // on-demand mode only: latest request number heard from each node, whether this node is waiting for the
+        // token or about to ask for it and when it last asked, the token if it is idle here or waiting for this
+        // replica to catch up, and changes that arrived out of order, by first sequence number
+        private final HashMap<Integer, Integer> requests = new HashMap<>();
+        private volatile boolean requested = false;
+        private volatile boolean wanted = false;
+        private long requestedAt = 0;
+        private DemandToken idleToken;
+        private DemandToken grantedToken;
+        private long grantedAt = 0;
+        private long catchUpSent = 0;
+        private final TreeMap<Long, PostLog> commits = new TreeMap<>();
+
+        private Shard(int index, String postStorage) {
+            this.index = index;
+            this.store = new PostStore(PostTable.create(postStorage));
+        }
+    }
+
+    private static Shard[] createShards(int count, String postStorage) {
+        Shard[] created = new Shard[count];
+        for (int i = 0; i < count; i++)
+            created[i] = new Shard(i, postStorage);
+        return created;
+    }
+
+    /**
+     * @param recipient recipient of a post
+     * @return shard holding the recipient's mailbox
+     */
+    private Shard shardFor(String recipient) {
+        return shards[Math.floorMod(recipient.hashCode(), shards.length)];
+    }
 
     /**
      * ServerNode constructor
@@ -50,652 +166,2168 @@ public class ServerNode {
         this.coordinatorPort = coordinatorPort;
         this.loggerFileName = "Server" + id + "Log.log";
 
-        logger = new PrintWriter(new FileWriter(loggerFileName), true);
-        logger.println(getTimestamp() + "New server created with ID " + id);
-    }
-
-    /**
-     * Method to get current timestamp for log entry
-     * @return Formatted string containing timestamp
-     */
-    private String getTimestamp() {
-        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
-        Date date = new Date();
-        return "[" + dateFormat.format(date) + "] ";
+        logger = new AsyncLogger(loggerFileName, AsyncLogger.levelFromProperty());
+        logger.info("New server created with ID " + id);
+        election = Election.create(System.getProperty("server.election", "chang-roberts"), new ElectionRing(), logger);
     }
 
     /**
      * Method to initialise ServerSocket used for listening.
      * @throws IOException
      */
-    private void initialiseServer() throws IOException {
-        listener = new ServerSocket(port);
-        logger.println(getTimestamp() + "Server " + id + " now listening.");
+    void initialiseServer() throws IOException {
+        if (useSelector)
+            selectorServer = new SelectorServer(port, ClientSession::new, logger);
+        else
+            listener = new ServerSocket(port);
+        logger.info("Server " + id + " now listening.");
+        openWals();
         if (id == coordinatorId) {
-            logger.println(getTimestamp() + "Server is coordinator.");
+            logger.info("Server is coordinator.");
             isCoordinator = true;
         }
+        bootstrapsRing = isCoordinator;
+        restoreSnapshot();
+    }
+
+    private Path snapshotPath() {
+        return Paths.get("Server" + id + ".snapshot");
     }
 
     /**
-     * Reads and parses csv file containing server details.
+     * Restores this node's state from its last snapshot, if snapshots are enabled and there is one, so that start
+     * can rejoin the ring directly. A shard's replica is only taken from the snapshot if there is no write-ahead
+     * log, since the log is more recent. For the same reason the log may already hold some of the snapshot's queued
+     * posts: the queue is drained in order, so they are the first as many as the node made after the snapshot, and
+     * are dropped rather than made again.
      */
-    private void buildNodeList() {
-        logger.println(getTimestamp() + "Reading host file.");
-        nodes = new ArrayList<>();
+    private void restoreSnapshot() {
+        if (snapshotMs <= 0)
+            return;
+        NodeSnapshot snapshot;
         try {
-            FileReader fr = new FileReader(HOST_FILE);
-            CSVReader csvReader = new CSVReaderBuilder(fr).withSkipLines(1).build();
-            String[] nextRecord;
+            snapshot = NodeSnapshot.read(snapshotPath());
+        } catch (IOException e) {
+            logger.error("ERROR could not read snapshot, ignoring it: " + e.getMessage());
+            return;
+        }
+        if (snapshot == null)
+            return;
+        if (snapshot.getNodeId() != id || snapshot.getShards().size() != shards.length) {
+            logger.error("ERROR snapshot is for another node or number of shards, ignoring it.");
+            return;
+        }
 
-            while ((nextRecord = csvReader.readNext()) != null) {
-                int id = Integer.parseInt(nextRecord[0]);
-                String host = nextRecord[1];
-                int port = Integer.parseInt(nextRecord[2]);
+        membership.adopt(snapshot.getMembershipVersion(), snapshot.getCoordinatorId(), snapshot.getMembers());
+        Node coordinator = membership.get(snapshot.getCoordinatorId());
+        if (coordinator != null) {
+            coordinatorId = coordinator.getId();
+            coordinatorHost = coordinator.getHost();
+            coordinatorPort = coordinator.getPort();
+            isCoordinator = coordinatorId == id;
+            tokenIssued = isCoordinator;
+        }
+        previousNode = membership.get(snapshot.getPreviousId());
+
+        int queued = 0;
+        int dropped = 0;
+        for (Shard shard : shards) {
+            NodeSnapshot.ShardState state = snapshot.getShards().get(shard.index);
+            shard.epoch = Math.max(shard.epoch, state.getEpoch());
+            shard.hop = state.getHop();
+            List<Post> pending = state.getPendingPosts();
+            if (shard.wal == null) {
+                shard.store.load(state.getStore());
+                shard.made = state.getMade();
+            } else {
+                int made = (int) Math.max(0, Math.min(pending.size(), shard.made - state.getMade()));
+                pending = pending.subList(made, pending.size());
+                dropped += made;
+            }
+            for (Post post : pending)
+                shard.postsToMake.offer(new PendingPost(post, null));
+            for (long postId : state.getPendingDeletes()) {
+                shard.pendingDeletes.offer(postId);
+                shard.store.remove(postId);
+            }
+            queued += pending.size();
+        }
+        restored = true;
+        logger.info("Restored snapshot of membership version " + membership.getVersion() + " with " + queued
+                + " queued posts, " + dropped + " already made.");
+    }
 
-                nodes.add(new Node(id, host, port));
+    /**
+     * Snapshot task. Copies this node's state while holding the node lock, and writes it out after letting go.
+     */
+    private void writeSnapshot() {
+        NodeSnapshot snapshot;
+        synchronized (this) {
+            if (closed || departed || !ringComplete)
+                return;
+            ArrayList<NodeSnapshot.ShardState> states = new ArrayList<>();
+            for (Shard shard : shards) {
+                ArrayList<Post> pending = new ArrayList<>(shard.postsToMake.size());
+                shard.postsToMake.forEach(post -> pending.add(post.getPost()));
+                ArrayList<Long> deletes = new ArrayList<>(shard.pendingDeletes.size());
+                shard.pendingDeletes.forEach(deletes::add);
+                states.add(new NodeSnapshot.ShardState(shard.epoch, shard.hop, shard.store.snapshot(id), pending,
+                        deletes, shard.made));
             }
-        } catch (FileNotFoundException e) {
-            logger.println(getTimestamp() + "ERROR could not find file.");
-            e.printStackTrace();
+            snapshot = new NodeSnapshot(id, membership.getVersion(), membership.getCoordinatorId(),
+                    new ArrayList<>(membership.getNodes()), previousNode == null ? -1 : previousNode.getId(), states);
+        }
+
+        try {
+            snapshot.write(snapshotPath());
         } catch (IOException e) {
-            logger.println(getTimestamp() + "ERROR IO Exception.");
-            e.printStackTrace();
+            logger.error("ERROR could not write snapshot: " + e.getMessage());
         }
     }
 
     /**
-     * Prints parsed csv file
+     * Asks the members of the restored view to let this node back in, starting with its old previous node so that
+     * it goes back where it was. The JOIN is handled like any other, so the replicas come back up to date with it.
+     * @return true if a member was reached
      */
-    private void printNodeList() {
-        logger.println(getTimestamp() + "Host file read.");
-        for (Node node : nodes) {
-            System.out.println(node.getId() + ", " + node.getHost() + ":" + node.getPort());
+    private boolean rejoin() {
+        List<Node> members = membership.getNodes();
+        int self = indexOf(members, id);
+        joining = true;
+        for (int i = 1; i <= members.size(); i++) {
+            Node contact = members.get(Math.floorMod(self - i, members.size()));
+            if (contact.getId() == id)
+                continue;
+            logger.info("Asking Server " + contact.getId() + " to rejoin the ring.");
+            if (sendToNode(contact, Frame.join(new Node(id, host, port))))
+                return true;
         }
+        joining = false;
+        return false;
     }
 
     /**
-     * Attempts to establish contact with each node. If a node is unreachable, ring cannot be constructed, so stops.
-     * @return true if all nodes are online, false if inactive node found.
+     * Waits for this node to be let back into the ring.
+     * @param timeoutMs how long to wait
+     * @return true if the ring is complete
      */
-    private boolean checkAllServersOnline() {
-        logger.println(getTimestamp() + "Checking network state.");
-        for (Node node : nodes) {
+    private boolean awaitRing(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!ringComplete && !closed && System.nanoTime() - deadline < 0) {
             try {
-                logger.println(getTimestamp() + "Checking Server " + node.getId());
-                serverToTalkTo = new Socket(node.getHost(), node.getPort());
-                BufferedReader inFromServer = new BufferedReader(new InputStreamReader(serverToTalkTo.getInputStream()));
-                PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(serverToTalkTo.getOutputStream()), true);
-
-                String msgToSend = "HELLO";
-                logger.println(getTimestamp() + "Sending to " + node.getId() + ": " + msgToSend);
-                outToServer.println(msgToSend);
-
-                String msg = inFromServer.readLine();
-                logger.println(getTimestamp() + "Received from " + node.getId() + ": " + msg);
-
-                if (msg.equals("OK")) {
-                    logger.println(getTimestamp() + "Acknowledgement received.");
-                    msgToSend = "Hello from Coordinator!";
-                    logger.println(getTimestamp() + "Sending to " + node.getId() + ": " + msgToSend);
-                    outToServer.println(msgToSend);
-
-                    msg = inFromServer.readLine();
-                    logger.println(getTimestamp() + "Received from " + node.getId() + ": " + msg);
-                    System.out.println(msg);
-                }
-
-                logger.println(getTimestamp() + "Closing connection with " + node.getId());
-                serverToTalkTo.close();
-            } catch (UnknownHostException e) {
-                logger.println(getTimestamp() + "ERROR unknown host.");
-                e.printStackTrace();
-                return false;
-            } catch (ConnectException e) {
-                logger.println(getTimestamp() + "ERROR Server " + node.getId() + " is not communicating.");
-                System.out.println(node.getId() + " is not online.");
-                return false;
-            } catch (IOException e) {
-                logger.println(getTimestamp() + "ERROR IO Exception.");
-                e.printStackTrace();
-                return false;
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return ringComplete;
             }
         }
-        logger.println(getTimestamp() + "All nodes online!");
-        return true;
+        return ringComplete;
     }
 
     /**
-     * Set the node current ServerNode can directly communicate with.
-     * @param nextNode node to be set as nextNode
+     * Forgets the restored view, so that this node can build a new ring from the host file.
      */
-    private void setNextNode(Node nextNode) {
-        logger.println(getTimestamp() + "Setting next node for " + id + " to " + nextNode.getId());
-        this.nextNode = nextNode;
+    private synchronized void resetForBootstrap() {
+        joining = false;
+        membership = new Membership();
+        coordinatorId = id;
+        coordinatorHost = host;
+        coordinatorPort = port;
+        isCoordinator = true;
+        tokenIssued = false;
     }
 
     /**
-     * Checks whether next node ID is greater than current coordinator ID. If so, triggers election.
+     * Opens each shard's write-ahead log, if enabled, and rebuilds the shard's replica from it.
+     * @throws IOException if a log cannot be opened
      */
-    private void checkForElection() {
-        if (nextNode.getId() > coordinatorId) {
-            logger.println(getTimestamp() + "Next node ID greater than coordinator ID");
-            logger.println(getTimestamp() + "TRIGGERING ELECTION");
-            sendElection("");
+    private void openWals() throws IOException {
+        if (walDir == null)
+            return;
+        for (Shard shard : shards) {
+            shard.wal = new PostWal(Paths.get(walDir, "Server" + id, "shard-" + shard.index), walSegmentBytes, walSync);
+            int replayed = shard.wal.recover(shard.store);
+            shard.made = shard.wal.getMade();
+            // every entry is numbered from the range of the epoch its token was in
+            if (shard.store.getLastAppliedSeq() >= 0)
+                shard.epoch = (int) (shard.store.getLastAppliedSeq() >> EPOCH_SEQ_SHIFT);
+            logger.info("Recovered " + shard.store.size() + " posts for shard " + shard.index + " from " + replayed
+                    + " log records.");
         }
     }
 
     /**
-     * Sends election messages to next node.
-     * @param currentIds String containing all ID's currently read.
+     * Applies the token's log to a shard's replica, appending the entries it has not seen yet to the shard's
+     * write-ahead log first.
+     * @param shard shard the token belongs to
+     * @param log post store changes travelling with the token
      */
-    private void sendElection(String currentIds) {
-        try {
-            logger.println(getTimestamp() + "Connecting to next node, ID = " + nextNode.getId() + ".");
-            serverToTalkTo = new Socket(nextNode.getHost(), nextNode.getPort());
-            BufferedReader inFromServer = new BufferedReader(new InputStreamReader(serverToTalkTo.getInputStream()));
-            PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(serverToTalkTo.getOutputStream()), true);
-
-            String msgToSend = "ELECTION";
-            logger.println(getTimestamp() + "Sending to " + nextNode.getId() + ": " + msgToSend);
-            outToServer.println(msgToSend);
-
-            String msg = inFromServer.readLine();
-            logger.println(getTimestamp() + "Received from " + nextNode.getId() + ": " + msg);
-
-            if (msg.equals("OK")) {
-                msgToSend = currentIds + id + ",";
-                logger.println(getTimestamp() + "Sending to " + nextNode.getId() + ": " + msgToSend);
-                outToServer.println(msgToSend);
+    private void applyLog(Shard shard, PostLog log) {
+        if (shard.wal != null) {
+            try {
+                for (PostLog.Entry entry : log.getEntries()) {
+                    if (entry.getSeq() > shard.store.getLastAppliedSeq())
+                        shard.wal.append(entry);
+                }
+            } catch (IOException e) {
+                logger.error("ERROR could not append to write-ahead log for shard " + shard.index + ".");
+            }
+        }
+        ArrayList<String> notify = null;
+        if (!subscribers.isEmpty()) {
+            for (PostLog.Entry entry : log.getEntries()) {
+                if (entry.getType() != PostLog.INSERT || entry.getSeq() <= shard.store.getLastAppliedSeq())
+                    continue;
+                String recipient = entry.getPost().getRecipient();
+                if (subscribers.containsKey(recipient)) {
+                    if (notify == null)
+                        notify = new ArrayList<>();
+                    if (!notify.contains(recipient))
+                        notify.add(recipient);
+                }
             }
-            logger.println(getTimestamp() + "Closing connection with " + nextNode.getId());
-            serverToTalkTo.close();
+        }
+        shard.store.apply(log);
+        if (notify != null) {
+            for (String recipient : notify)
+                deliveries.execute(() -> deliverTo(recipient));
+        }
+    }
 
-        } catch (UnknownHostException e) {
-            logger.println(getTimestamp() + "ERROR unknown host.");
-            e.printStackTrace();
-        } catch (ConnectException e) {
-            logger.println(getTimestamp() + "ERROR Server " + nextNode.getId() + " is not communicating.");
-            System.out.println(nextNode.getId() + " is not online.");
+    /**
+     * Hands posts that have just reached a recipient's mailbox to the connections waiting for them. Only run on
+     * the delivery thread, so a recipient's posts go out in mailbox order.
+     * @param recipient recipient whose mailbox has new posts
+     */
+    private void deliverTo(String recipient) {
+        List<ClientSession> waiting = subscribers.get(recipient);
+        if (waiting == null)
+            return;
+        for (ClientSession session : waiting)
+            session.deliver();
+    }
+
+    /**
+     * Group commit for a token visit: makes everything appended to a shard's write-ahead log during the visit
+     * durable, according to the sync policy, and compacts the log if it has grown stale.
+     * @param shard shard the token belongs to
+     */
+    private void commitWal(Shard shard) {
+        if (shard.wal == null)
+            return;
+        try {
+            shard.wal.commit();
+            if (shard.wal.needsSnapshot())
+                shard.wal.snapshot(shard.store.snapshot(id));
         } catch (IOException e) {
-            logger.println(getTimestamp() + "ERROR IO Exception.");
-            e.printStackTrace();
+            logger.error("ERROR could not commit write-ahead log for shard " + shard.index + ".");
         }
     }
 
     /**
-     * Once election ring has completed, all collected ID's are inspected.
-     * @param ids String of node ID's
-     * @return Highest node ID found within the network
+     * Interval sync task. Forces every shard's write-ahead log to disk.
      */
-    private int findNewCoordinatorID(String[] ids) {
-        logger.println(getTimestamp() + "Finding server with highest ID.");
-        int highestID = -1;
-
-        for (String id : ids) {
-            int numId = Integer.parseInt(id);
-            if (numId > highestID)
-                highestID = numId;
+    private void syncWals() {
+        for (Shard shard : shards) {
+            if (shard.wal != null)
+                shard.wal.force();
         }
-        logger.println(getTimestamp() + "New coordinator shall be " + highestID);
-        return highestID;
     }
 
     /**
-     * Sends update coordinator to next node.
-     * @param startID node ID of node where ring starts
-     * @param newCoordinator ID of node that is to be the new coordinator.
+     * Reads and parses csv file containing server details. Only the coordinator reads it, to build the ring; every
+     * other node learns the membership from the ring.
+     * @return nodes in host file order
      */
-    private void updateCoordinatorID(int startID, int newCoordinator) {
+    private ArrayList<Node> buildNodeList() {
+        logger.info("Reading host file.");
+        ArrayList<Node> nodes = new ArrayList<>();
         try {
-            logger.println(getTimestamp() + "Connecting to next node.");
-            serverToTalkTo = new Socket(nextNode.getHost(), nextNode.getPort());
-            BufferedReader inFromServer = new BufferedReader(new InputStreamReader(serverToTalkTo.getInputStream()));
-            PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(serverToTalkTo.getOutputStream()), true);
-
-            String msgToSend = "UPDATE COORDINATOR ID";
-            logger.println(getTimestamp() + "Sending to " + nextNode.getId() + ": " + msgToSend);
-            outToServer.println(msgToSend);
+            FileReader fr = new FileReader(hostFile);
+            CSVReader csvReader = new CSVReaderBuilder(fr).withSkipLines(1).build();
+            String[] nextRecord;
 
-            String msg = inFromServer.readLine();
-            logger.println(getTimestamp() + "Received from " + nextNode.getId() + ": " + msg);
+            while ((nextRecord = csvReader.readNext()) != null) {
+                int id = Integer.parseInt(nextRecord[0]);
+                String host = nextRecord[1];
+                int port = Integer.parseInt(nextRecord[2]);
 
-            if (msg.equals("OK")) {
-                msgToSend = startID + "," + newCoordinator;
-                logger.println(getTimestamp() + "Sending to " + nextNode.getId() + ": " + msgToSend);
-                outToServer.println(msgToSend);
+                nodes.add(new Node(id, host, port));
             }
-
-            logger.println(getTimestamp() + "Closing connection with " + nextNode.getId());
-            serverToTalkTo.close();
-
-        } catch (UnknownHostException e) {
-            logger.println(getTimestamp() + "ERROR unknown host.");
+        } catch (FileNotFoundException e) {
+            logger.error("ERROR could not find file.");
             e.printStackTrace();
-        } catch (ConnectException e) {
-            logger.println(getTimestamp() + "ERROR Server " + nextNode.getId() + " is not communicating.");
-            System.out.println(nextNode.getId() + " is not online.");
         } catch (IOException e) {
-            logger.println(getTimestamp() + "ERROR IO Exception.");
+            logger.error("ERROR IO Exception.");
             e.printStackTrace();
         }
+        return nodes;
     }
 
     /**
-     * Retrieve respective endpoint(host and port) for new coordinator
-     * @param newCoordinator ID of new coordinator
+     * Prints parsed csv file
+     * @param nodes nodes read from the host file
      */
-    private void updateCoordinatorEndpoint(int newCoordinator) {
-        logger.println(getTimestamp() + "Reading host file.");
-        buildNodeList();
-        logger.println(getTimestamp() + "Finding new coordinator endpoint.");
+    private void printNodeList(List<Node> nodes) {
+        logger.info("Host file read.");
         for (Node node : nodes) {
-            if (node.getId() == newCoordinator) {
-                logger.println(getTimestamp() + "Updating coordinator info.");
-                coordinatorId = node.getId();
-                coordinatorHost = node.getHost();
-                coordinatorPort = node.getPort();
-                if (isCoordinator) {
-                    isCoordinator = false;
-                    logger.println(getTimestamp() + "I AM NO LONGER COORDINATOR");
-                }
-                logger.println(getTimestamp() + "NEW COORDINATOR IS " + coordinatorId);
-                break;
-            }
+            System.out.println(node.getId() + ", " + node.getHost() + ":" + node.getPort());
         }
     }
 
     /**
-     * Once all nodes have an updated coordinator, new coordinator is informed.
+     * Returns the persistent link to a node, creating it if one does not exist yet.
+     * @param node node to link to
+     * @return link to node
      */
-    private void electionCompleted() {
-        try {
-            serverToTalkTo = new Socket(coordinatorHost, coordinatorPort);
-            BufferedReader inFromServer = new BufferedReader(new InputStreamReader(serverToTalkTo.getInputStream()));
-            PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(serverToTalkTo.getOutputStream()), true);
-
-            String msgToSend = "ELECTION COMPLETE";
-            logger.println(getTimestamp() + "Sending to " + coordinatorId + ": " + msgToSend);
-            outToServer.println(msgToSend);
-
-            String msg = inFromServer.readLine();
-            logger.println(getTimestamp() + "Received from " + coordinatorId + ": " + msg);
-            logger.println(msg);
-
-            if (msg.equals("OK")) {
-                logger.println(getTimestamp() + "Election completion acknowledged.");
-            }
-
-            logger.println(getTimestamp() + "Closing connection with " + coordinatorId);
-            serverToTalkTo.close();
+    private synchronized PeerLink getLink(Node node) {
+        PeerLink link = links.get(node.getId());
+        if (link == null || link.getNode().getPort() != node.getPort() || !link.getNode().getHost().equals(node.getHost())) {
+            if (link != null)
+                link.close();
+            link = new PeerLink(node, this::handleFrame, binaryWire);
+            links.put(node.getId(), link);
+        }
+        return link;
+    }
 
+    /**
+     * Sends a framed message to a node over its persistent link.
+     * @param node node to send to
+     * @param frame message to be sent
+     * @return true if message was sent, false if node could not be reached
+     */
+    private boolean sendToNode(Node node, Frame frame) {
+        try {
+            if (logger.isDebugEnabled())
+                logger.debug("Sending to " + node.getId() + ": " + frame);
+            getLink(node).send(frame);
+            return true;
         } catch (UnknownHostException e) {
-            logger.println(getTimestamp() + "ERROR unknown host.");
+            logger.error("ERROR unknown host.");
             e.printStackTrace();
         } catch (ConnectException e) {
-            logger.println(getTimestamp() + "ERROR Server " + coordinatorId + " is not communicating.");
-            System.out.println(coordinatorId + " is not online.");
+            logger.error("ERROR Server " + node.getId() + " is not communicating.");
+            System.out.println(node.getId() + " is not online.");
         } catch (IOException e) {
-            logger.println(getTimestamp() + "ERROR IO Exception.");
+            logger.error("ERROR IO Exception.");
             e.printStackTrace();
         }
+        return false;
     }
 
     /**
-     * Method used to pass the token from one node to the next.
+     * Attempts to establish contact with each node, probing all of them at once. Nodes that are not online yet are
+     * probed again after a backoff that doubles each round, up to PROBE_BACKOFF_MAX_MS. Gives up waiting once
+     * bootstrapTimeoutMs has passed, so that the ring can be built from the nodes that are up. Links opened here
+     * are kept for ring construction.
+     * @param executor runs the probes
+     * @param nodes nodes read from the host file
+     * @return nodes that are online, in host file order, or an empty list if this node was closed first
      */
-    private void passToken() {
-        try {
-            serverToTalkTo = new Socket(nextNode.getHost(), nextNode.getPort());
-            BufferedReader inFromServer = new BufferedReader(new InputStreamReader(serverToTalkTo.getInputStream()));
-            PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(serverToTalkTo.getOutputStream()), true);
-
-            String msgToSend = "TOKEN";
-            logger.println(getTimestamp() + "Sending to " + nextNode.getId() + ": " + msgToSend);
-            outToServer.println(msgToSend);
-
-            String msg = inFromServer.readLine();
-            logger.println(getTimestamp() + "Received from " + nextNode.getId() + ": " + msg);
-
-            if (msg.equals("OK"))
-                logger.println(getTimestamp() + "Token successfully passed.");
+    private List<Node> checkAllServersOnline(ExecutorService executor, List<Node> nodes) {
+        logger.info("Checking network state.");
+        List<Node> offline = nodes;
+        long backoffMs = PROBE_BACKOFF_MIN_MS;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(bootstrapTimeoutMs);
+
+        while (!closed) {
+            List<CompletableFuture<Boolean>> probes = new ArrayList<>();
+            for (Node node : offline)
+                probes.add(CompletableFuture.supplyAsync(() -> probe(node), executor));
+
+            ArrayList<Node> stillOffline = new ArrayList<>();
+            for (int i = 0; i < probes.size(); i++) {
+                if (!probes.get(i).join())
+                    stillOffline.add(offline.get(i));
+            }
+            if (stillOffline.isEmpty()) {
+                logger.info("All nodes online!");
+                return nodes;
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                logger.info("Building ring without " + stillOffline.size() + " nodes that are not online.");
+                ArrayList<Node> online = new ArrayList<>(nodes);
+                online.removeAll(stillOffline);
+                return online;
+            }
 
-            logger.println(getTimestamp() + "Closing connection with " + nextNode.getId());
-            serverToTalkTo.close();
+            logger.info(stillOffline.size() + " nodes not online, checking again in " + backoffMs + "ms.");
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                return new ArrayList<>();
+            }
+            backoffMs = Math.min(backoffMs * 2, PROBE_BACKOFF_MAX_MS);
+            offline = stillOffline;
+        }
+        return new ArrayList<>();
+    }
 
+    /**
+     * Opens the link to a node and says hello.
+     * @param node node to probe
+     * @return true if node is online
+     */
+    private boolean probe(Node node) {
+        try {
+            logger.info("Checking Server " + node.getId());
+            getLink(node).connect();
         } catch (UnknownHostException e) {
-            logger.println(getTimestamp() + "ERROR unknown host.");
-            e.printStackTrace();
-        } catch (ConnectException e) {
-            logger.println(getTimestamp() + "ERROR Server " + nextNode.getId() + " is not communicating.");
-            System.out.println(nextNode.getId() + " is not online.");
+            logger.error("ERROR unknown host.");
+            return false;
         } catch (IOException e) {
-            logger.println(getTimestamp() + "ERROR IO Exception.");
-            e.printStackTrace();
+            logger.error("ERROR Server " + node.getId() + " is not communicating.");
+            System.out.println(node.getId() + " is not online.");
+            return false;
         }
+        return sendToNode(node, Frame.hello("Hello from Coordinator!"));
     }
 
     /**
-     * Method used to build ring structure within the network.
+     * Set the node current ServerNode can directly communicate with.
+     * @param nextNode node to be set as nextNode
      */
-    private void buildRing() {
-        logger.println(getTimestamp() + "Beginning ring construction.");
-        for (int i = 0; i < nodes.size(); i++) {
-            Node currentNode = nodes.get(i);
-            try {
-                logger.println(getTimestamp() + "Updating Server " + currentNode.getId() + " next node.");
-                serverToTalkTo = new Socket(currentNode.getHost(), currentNode.getPort());
-                BufferedReader inFromServer = new BufferedReader(new InputStreamReader(serverToTalkTo.getInputStream()));
-                PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(serverToTalkTo.getOutputStream()), true);
-
-                String msgToSend = "NEXT NODE";
-                logger.println(getTimestamp() + "Sending to " + currentNode.getId() + ": " + msgToSend);
-                outToServer.println(msgToSend);
-
-                String msg = inFromServer.readLine();
-                logger.println(getTimestamp() + "Received from " + currentNode.getId() + ": " + msg);
+    private void setNextNode(Node nextNode) {
+        logger.info("Setting next node for " + id + " to " + nextNode.getId());
+        this.nextNode = nextNode;
+    }
 
-                if (msg.equals("OK")) {
-                    Node nextNode;
+    /**
+     * Checks whether next node ID is greater than current coordinator ID. If so, triggers election.
+     */
+    private void checkForElection() {
+        if (nextNode.getId() > coordinatorId) {
+            logger.info("Next node ID greater than coordinator ID");
+            logger.info("TRIGGERING ELECTION");
+            electionStarted = System.nanoTime();
+            election.start();
+        }
+    }
 
-                    if (i < nodes.size()-1) {
-                        nextNode = nodes.get(i+1);
-                    } else {
-                        nextNode = nodes.get(0);
-                    }
+    /**
+     * Retrieve respective endpoint(host and port) for new coordinator
+     * @param newCoordinator ID of new coordinator
+     */
+    private void updateCoordinatorEndpoint(int newCoordinator) {
+        logger.info("Finding new coordinator endpoint.");
+        Node node = membership.get(newCoordinator);
+        if (node == null) {
+            logger.error("ERROR Server " + newCoordinator + " is not a member.");
+            return;
+        }
 
-                    msgToSend = nextNode.getId() + "," + nextNode.getHost() + "," + nextNode.getPort();
-                    logger.println(getTimestamp() + "Sending to " + currentNode.getId() + ": " + msgToSend);
-                    outToServer.println(msgToSend);
-                    logger.println(getTimestamp() + "New next node sent to " + currentNode.getId());
-                }
+        logger.info("Updating coordinator info.");
+        coordinatorId = node.getId();
+        coordinatorHost = node.getHost();
+        coordinatorPort = node.getPort();
+        if (isCoordinator) {
+            isCoordinator = false;
+            logger.info("I AM NO LONGER COORDINATOR");
+        }
+        logger.info("NEW COORDINATOR IS " + coordinatorId);
+    }
 
-                logger.println(getTimestamp() + "Closing connection with " + currentNode.getId());
-                serverToTalkTo.close();
+    /**
+     * Records how long an election started by this node took.
+     */
+    private void recordElection() {
+        if (electionStarted != 0) {
+            metrics.election.record(System.nanoTime() - electionStarted);
+            electionStarted = 0;
+        }
+    }
 
-            } catch (UnknownHostException e) {
-                logger.println(getTimestamp() + "ERROR unknown host.");
-                e.printStackTrace();
-            } catch (ConnectException e) {
-                logger.println(getTimestamp() + "ERROR Server " + currentNode.getId() + " is not communicating.");
-                System.out.println(currentNode.getId() + " is not online.");
-            } catch (IOException e) {
-                logger.println(getTimestamp() + "ERROR IO Exception.");
-                e.printStackTrace();
+    /**
+     * Method used to pass the token from one node to the next. If the next node cannot be reached, it is spliced
+     * out of the ring and the token goes to the next live node instead.
+     * @param shard shard the token belongs to
+     * @param log post store changes travelling with the token
+     */
+    private void passToken(Shard shard, PostLog log) {
+        long passStarted = System.nanoTime();
+        shard.hop++;
+        while (!sendToNode(nextNode, Frame.token(shard.index, shard.epoch, shard.hop, shard.credit, log))) {
+            if (closed || nextNode.getId() == id) {
+                logger.error("ERROR Token could not be passed.");
+                return;
             }
+            spliceOut(nextNode);
         }
 
-        for (Node node : nodes) {
-            try {
-                serverToTalkTo = new Socket(node.getHost(), node.getPort());
-                PrintWriter outToServer = new PrintWriter(new OutputStreamWriter(serverToTalkTo.getOutputStream()), true);
-
-                String msgToSend = "COMPLETE";
-                logger.println(getTimestamp() + "Sending to " + node.getId() + ": " + msgToSend);
-                outToServer.println(msgToSend);
+        shard.outstanding = true;
+        shard.lastSentHop = shard.hop;
+        metrics.tokenPass.record(System.nanoTime() - passStarted);
+        logger.debug("Token successfully passed.");
+    }
 
-                logger.println(getTimestamp() + "Closing connection with " + node.getId());
-                serverToTalkTo.close();
+    /**
+     * Heartbeat task. Sends a heartbeat to the next node, and splices it out of the ring if it has not
+     * acknowledged one within failureTimeoutMs. The timeout only applies once the first heartbeat has been
+     * acknowledged, so a node that is slow to start is not mistaken for a failed one; a node that is down is still
+     * found straight away when the heartbeat cannot be sent.
+     */
+    private synchronized void checkNextNode() {
+        if (closed || !ringComplete)
+            return;
+
+        long now = System.nanoTime();
+        if (lastHeartbeatAck != 0 && now - lastHeartbeatAck > TimeUnit.MILLISECONDS.toNanos(failureTimeoutMs)) {
+            logger.error("ERROR Server " + nextNode.getId() + " missed heartbeats.");
+            spliceOut(nextNode);
+            return;
+        }
+        if (!sendToNode(nextNode, Frame.heartbeat(new Node(id, host, port))))
+            spliceOut(nextNode);
 
-            } catch (UnknownHostException e) {
-                logger.println(getTimestamp() + "ERROR unknown host.");
-                e.printStackTrace();
-            } catch (ConnectException e) {
-                logger.println(getTimestamp() + "ERROR Server " + node.getId() + " is not communicating.");
-                System.out.println(node.getId() + " is not online.");
-            } catch (IOException e) {
-                logger.println(getTimestamp() + "ERROR IO Exception.");
-                e.printStackTrace();
+        for (Shard shard : shards) {
+            if (shard.seedStarted != 0 && now - shard.seedStarted > TimeUnit.MILLISECONDS.toNanos(failureTimeoutMs)) {
+                logger.error("ERROR SEED for shard " + shard.index + " did not come back, sending it again.");
+                startSeed(shard);
             }
+            checkGrantedToken(shard, now);
+            checkRequest(shard, now);
         }
     }
 
     /**
-     * Print next node
+     * Called from the heartbeat while this node is waiting for a shard's token in on-demand mode. If the token has
+     * not come within failureTimeoutMs, the request is sent again, in case it was lost, and again every
+     * failureTimeoutMs after that. Hearing a request again tells the coordinator it has gone unanswered, so the
+     * coordinator looks for the token, as it does when its own request goes unanswered; see regenerateToken.
+     * @param shard shard in on-demand mode
+     * @param now System.nanoTime()
      */
-    private void printNextNode() {
-        System.out.println("Next node ID: " + nextNode.getId());
-        System.out.println("Next node Host: " + nextNode.getHost());
-        System.out.println("Next node Port: " + nextNode.getPort());
+    private void checkRequest(Shard shard, long now) {
+        if (!shard.requested || shard.requestedAt == 0 || shard.idleToken != null || shard.grantedToken != null)
+            return;
+        if (now - shard.requestedAt < TimeUnit.MILLISECONDS.toNanos(failureTimeoutMs))
+            return;
+        shard.requestedAt = now;
+        int number = shard.requests.getOrDefault(id, 0);
+        logger.error("ERROR Request for token for shard " + shard.index + " has not been answered, sending it again.");
+        for (Node member : membership.getNodes()) {
+            if (member.getId() != id && !splicedOut.contains(member.getId()))
+                sendToNode(member, Frame.request(shard.index, id, number));
+        }
+        regenerateToken(shard);
     }
 
     /**
-     * Creates a new post and adds it to the queue
-     * @param sender sender of post
-     * @param recipient desired recipient of post
-     * @param post message within the post
+     * Coordinator only, in on-demand mode. Sends a SEED lap to find a shard's token when it may have been lost with
+     * a failed member: when a member is spliced out, or a request for the token goes unanswered. A member that has
+     * the token marks it on the lap, and if none does the token is issued anew, in a new epoch, when the lap comes
+     * back. Tokens from older epochs are discarded should they turn up again.
+     * @param shard shard whose token may have been lost
      */
-    private void addPostToQueue(String sender, String recipient, String post) {
-        postsToMake.add(new Post(sender, recipient, post));
+    private void regenerateToken(Shard shard) {
+        if (!onDemand || !isCoordinator || !tokenIssued || shard.seedStarted != 0 || shard.idleToken != null
+                || shard.grantedToken != null)
+            return;
+        logger.error("ERROR Token for shard " + shard.index + " may have been lost, looking for it round the ring.");
+        shard.regenerating = true;
+        startSeed(shard);
     }
 
     /**
-     * Adds post to shared resource
+     * Called from the heartbeat for a token sent to this node that is still waiting for this replica to catch up.
+     * Changes and views are sent to each replica best-effort, so if one was lost the token would wait here for
+     * good. After failureTimeoutMs, the token's last holder is asked for its view and replica, and again every
+     * failureTimeoutMs after that. If the token is still waiting after three times as long, as when the last holder
+     * has failed too, it is issued anew in the next epoch, numbering its changes from a new range, and held.
+     * @param shard shard in on-demand mode
+     * @param now System.nanoTime()
      */
-    private void postMessage() {
-        posts.add(postsToMake.get(0));
-        postsToMake.remove(0);
+    private void checkGrantedToken(Shard shard, long now) {
+        DemandToken token = shard.grantedToken;
+        if (token == null)
+            return;
+        long timeout = TimeUnit.MILLISECONDS.toNanos(failureTimeoutMs);
+        if (now - shard.grantedAt > 3 * timeout) {
+            shard.grantedToken = null;
+            shard.epoch = Math.max(shard.epoch, (int) ((token.getNextSeq() - 1) >> EPOCH_SEQ_SHIFT)) + 1;
+            metrics.tokensRegenerated.incrementAndGet();
+            logger.error("ERROR Token for shard " + shard.index + " is missing changes that never arrived, issuing token"
+                    + " for epoch " + shard.epoch + ".");
+            DemandToken reissued = token.reissue(shard.epoch, (long) shard.epoch << EPOCH_SEQ_SHIFT);
+            reissued.setVersion(membership.getVersion());
+            holdToken(shard, reissued);
+            return;
+        }
+        if (now - shard.grantedAt < timeout || now - shard.catchUpSent < timeout)
+            return;
+        Node holder = membership.get(token.getHolder());
+        if (holder == null || holder.getId() == id)
+            return;
+        shard.catchUpSent = now;
+        logger.error("ERROR Token for shard " + shard.index + " is waiting for missing changes, asking Server "
+                + holder.getId() + " to catch this replica up.");
+        sendToNode(holder, Frame.catchUp(shard.index, id));
     }
 
     /**
-     * Retrieves post from shared resource.
-     * @param recipient recipient of post to be retrieved
-     * @return post for recipient
+     * Removes a failed next node from the ring by linking to the first live node after it, in ring order.
+     * If any token was last passed to the failed node, the new next node is asked how far the tokens have got; see
+     * checkTokens.
+     * @param failed next node, which has failed
      */
-    private Post getPost(String recipient) {
-        Post toReturn = null;
-
-        for (Post post : posts) {
-            if (post.getRecipient().equals(recipient)) {
-                toReturn = post;
+    private synchronized void spliceOut(Node failed) {
+        if (closed || failed != nextNode)
+            return;
+        logger.error("ERROR Server " + failed.getId() + " has failed, splicing it out of the ring.");
+        metrics.nodeFailures.incrementAndGet();
+        removeLink(failed);
+        splicedOut.add(failed.getId());
+
+        Node self = new Node(id, host, port);
+        Node successor = self;
+        List<Node> nodes = membership.getNodes();
+        int start = indexOf(nodes, failed.getId());
+        for (int i = 1; start >= 0 && i < nodes.size(); i++) {
+            Node candidate = nodes.get((start + i) % nodes.size());
+            if (candidate.getId() == id)
+                break;
+            if (splicedOut.contains(candidate.getId()))
+                continue;
+            try {
+                getLink(candidate).connect();
+                successor = candidate;
                 break;
+            } catch (IOException e) {
+                logger.error("ERROR Server " + candidate.getId() + " is not communicating.");
+                removeLink(candidate);
+                splicedOut.add(candidate.getId());
             }
         }
 
-        posts.remove(toReturn);
-
-        return toReturn;
+        setNextNode(successor);
+        lastHeartbeatAck = System.nanoTime();
+        for (Shard shard : shards)
+            shard.checkPending = shard.outstanding;
+        sendToNode(successor, Frame.previousNode(self));
+        requestToken(shards[0]);
+        for (Shard shard : shards)
+            regenerateToken(shard);
     }
 
     /**
-     * Main server listening loop.
-     * @throws IOException
-     * @throws InterruptedException
+     * Sends a SEED once round the ring before issuing a shard's token. Replicas restarted from their write-ahead
+     * logs may each have got further than this one, so the lap finds the highest epoch and sequence number any
+     * member has reached, and the token is issued above them. Sent again from checkNextNode if it is lost.
+     * @param shard shard whose token is to be issued
      */
-    private void listenForConnections() throws IOException, InterruptedException {
-        while (true) {
-            logger.println(getTimestamp() + "Listening for connection...");
-            System.out.println("Listening...");
-            Socket connected = listener.accept();
-            logger.println(getTimestamp() + "Client " + connected.toString() + " connected.");
-            System.out.println("Speaking to " + connected.toString());
-
-            BufferedReader inFromClient = new BufferedReader(new InputStreamReader(connected.getInputStream()));
-            PrintWriter outToClient = new PrintWriter(new OutputStreamWriter(connected.getOutputStream()), true);
-
-            String msg = inFromClient.readLine();
-            System.out.println(msg);
-            logger.println(getTimestamp() + "Received from client: " + msg);
-            String msgToSend = "OK";
-
-            if (msg.equals("HELLO")) {
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
-
-                msg = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
-                System.out.println(msg);
-
-                msgToSend = "Hello Coordinator! From " + id;
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
+    private void startSeed(Shard shard) {
+        shard.seedStarted = System.nanoTime();
+        if (nextNode == null || nextNode.getId() == id)
+            issueShardToken(shard, shard.epoch, shard.store.getLastAppliedSeq() + 1);
+        else
+            sendToNode(nextNode, Frame.seed(shard.index, id, shard.epoch, -1, shard.store.getLastAppliedSeq() + 1));
+    }
 
-            } else if (msg.equals("NEXT NODE")) {
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
+    /**
+     * Issues a shard's token once its SEED has been round the ring. If any replica has applied changes, or the
+     * token is being issued anew after being lost, the token takes a new epoch and numbers its changes from the
+     * start of that epoch's range, above every change applied anywhere, so no replica mistakes a new change for one
+     * it already has.
+     * @param shard shard whose token is to be issued
+     * @param seenEpoch highest epoch any member has seen
+     * @param seenNextSeq one past the highest sequence number any member has applied
+     */
+    private void issueShardToken(Shard shard, int seenEpoch, long seenNextSeq) {
+        shard.seedStarted = 0;
+        shard.epoch = seenEpoch;
+        if (seenNextSeq > 0 || shard.regenerating)
+            shard.epoch = Math.max(seenEpoch, (int) ((seenNextSeq - 1) >> EPOCH_SEQ_SHIFT)) + 1;
+        long firstSeq = Math.max(seenNextSeq, (long) shard.epoch << EPOCH_SEQ_SHIFT);
+        if (shard.regenerating) {
+            shard.regenerating = false;
+            metrics.tokensRegenerated.incrementAndGet();
+            logger.error("ERROR Token for shard " + shard.index + " lost, issuing token for epoch " + shard.epoch + ".");
+        }
+        logger.info("Issuing token for shard " + shard.index + " in epoch " + shard.epoch + " from seq " + firstSeq + ".");
 
-                msg = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
-                String[] splitMessage = msg.split(",");
+        if (onDemand) {
+            // the token starts here, and goes on to every node whose latest request it has not served, which after
+            // a lost token is every node that has asked
+            holdToken(shard, new DemandToken(shard.index, shard.epoch, membership.getVersion(), id, firstSeq));
+            return;
+        }
 
-                logger.println(getTimestamp() + "Parsing new next node");
-                int nextId = Integer.parseInt(splitMessage[0]);
-                String nextHost = splitMessage[1];
-                int nextPort = Integer.parseInt(splitMessage[2]);
+        // start the shard tokens spread evenly around the ring, so they do not travel as a convoy
+        List<Node> ring = membership.getNodes();
+        int self = indexOf(ring, id);
+        PostLog log = new PostLog(firstSeq, new ArrayList<>());
+        shard.credit = creditBudget();
+        Node start = self < 0 ? null : ring.get((self + shard.index * ring.size() / shards.length) % ring.size());
+        if (start == null || start.getId() == id)
+            passToken(shard, log);
+        else
+            sendToNode(start, Frame.token(shard.index, shard.epoch, shard.hop + 1, shard.credit, log));
+    }
 
-                setNextNode(new Node(nextId, nextHost, nextPort));
-                printNextNode();
-                logger.println(getTimestamp() + "Waiting for ring completion...");
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
-            } else if (msg.equals("COMPLETE")) {
-                logger.println(getTimestamp() + "Completion confirmed.");
-//                TimeUnit.SECONDS.sleep(1);
-                checkForElection();
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
+    /**
+     * Called with the token hops the next node has reached, after a failed node has been spliced out while a
+     * token was last passed to it. If the next node has not seen that token since, it was lost with the failed
+     * node, so a new one is issued with a higher epoch. The old token is discarded should it turn up again, and
+     * the new one numbers its entries from a range of its own so that the two can never clash.
+     * @param nextHops token hop reached by the next node, for each shard
+     */
+    private void checkTokens(int[] nextHops) {
+        if (nextHops.length != shards.length) {
+            logger.error("ERROR Server " + nextNode.getId() + " has " + nextHops.length + " shards, expected "
+                    + shards.length + ".");
+            return;
+        }
 
-            } else if (msg.equals("ELECTION")) {
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
+        for (Shard shard : shards) {
+            if (!shard.checkPending)
+                continue;
+            shard.checkPending = false;
+            if (nextHops[shard.index] - (shard.lastSentHop + 1) >= 0)
+                continue;
+
+            shard.epoch++;
+            metrics.tokensRegenerated.incrementAndGet();
+            logger.error("ERROR Token for shard " + shard.index + " lost, issuing token for epoch " + shard.epoch + ".");
+            long firstSeq = Math.max(shard.store.getLastAppliedSeq() + 1, (long) shard.epoch << EPOCH_SEQ_SHIFT);
+            shard.hop = shard.lastSentHop;
+            shard.credit = creditBudget();
+            passToken(shard, new PostLog(firstSeq, new ArrayList<>()));
+        }
+    }
 
-                msg = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
+    /**
+     * @return posts the ring may make with a shard's token per rotation, across all nodes
+     */
+    private int creditBudget() {
+        return ringCredit > 0 ? ringCredit : maxBatchSize * Math.max(1, membership.size());
+    }
 
-                logger.println(getTimestamp() + "Reading server IDs gathered so far.");
-                String[] ids = msg.split(",");
+    /**
+     * Tops up the credit a token arrived with by this node's share of the budget, never past the whole budget.
+     * Credit a quiet node leaves on the token can be used by busier nodes after it, but every holder gets at least
+     * its own share, so a node under heavy load cannot starve the others and the log carried by the token stays
+     * bounded.
+     * @param credit credit the token arrived with
+     * @return credit available to this node
+     */
+    private int refillCredit(int credit) {
+        int budget = creditBudget();
+        int share = Math.max(1, budget / Math.max(1, membership.size()));
+        return (int) Math.min(budget, (long) Math.max(0, credit) + share);
+    }
 
-                if (Integer.parseInt(ids[0]) == id) {
-                    logger.println(getTimestamp() + "Ring fully explored.");
-                    int newCoordinatorID = findNewCoordinatorID(ids);
-                    if (coordinatorId != newCoordinatorID) {
-                        logger.println(getTimestamp() + "Starting coordinator update propagation.");
-                        updateCoordinatorID(id, newCoordinatorID);
-                    } else {
-                        logger.println(getTimestamp() + "Coordinator already been updated.");
-                        logger.println(getTimestamp() + "No need for update cycle.");
-                    }
-                } else {
-                    sendElection(msg);
-                }
-            } else if (msg.equals("UPDATE COORDINATOR ID")) {
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
+    /**
+     * @param recipient recipient of a post that was turned away
+     * @return how long a client should wait before trying again: one rotation of the shard's token, which is when
+     *         this node can next drain its queue
+     */
+    private long retryAfterMs(String recipient) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(shardFor(recipient).lastRotationNanos));
+    }
 
-                msg = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
+    /**
+     * Asks for a shard's token in on-demand mode, unless this node is already waiting for it. Only marks the token
+     * as wanted; the request is made on the heartbeat thread, so that a client thread never takes the node lock or
+     * waits on a slow member. May be called from any thread.
+     * @param shard shard whose token is wanted
+     */
+    private void requestToken(Shard shard) {
+        if (!onDemand || closed || shard.requested || shard.wanted)
+            return;
+        shard.wanted = true;
+        heartbeats.execute(() -> broadcastRequest(shard));
+    }
 
-                logger.println(getTimestamp() + "Parsing message.");
-                String[] splitMsg = msg.split(",");
-                int startID = Integer.parseInt(splitMsg[0]);
+    /**
+     * Makes a request marked by requestToken. If the token is idle here it is used straight away, otherwise the
+     * request goes to every other member, since any of them may hold the token. The requests are sent after
+     * letting go of the node lock. Heartbeat thread only.
+     * @param shard shard whose token is wanted
+     */
+    private void broadcastRequest(Shard shard) {
+        int number;
+        ArrayList<Node> members = new ArrayList<>();
+        synchronized (this) {
+            shard.wanted = false;
+            if (shard.requested || !ringComplete || departed || closed)
+                return;
+            shard.requested = true;
+            if (shard.idleToken != null) {
+                useIdleToken(shard);
+                return;
+            }
+            number = shard.requests.merge(id, 1, Integer::sum);
+            shard.requestedAt = System.nanoTime();
+            for (Node member : membership.getNodes()) {
+                if (member.getId() != id && !splicedOut.contains(member.getId()))
+                    members.add(member);
+            }
+        }
+        for (Node member : members)
+            sendToNode(member, Frame.request(shard.index, id, number));
+    }
 
-                int newCoordinatorID = Integer.parseInt(splitMsg[1]);
+    /**
+     * Asks for the token of every shard this node has work waiting for.
+     */
+    private void requestPending() {
+        for (Shard shard : shards) {
+            if (hasWork(shard))
+                requestToken(shard);
+        }
+    }
 
-                if (coordinatorId != newCoordinatorID) {
-                    if (newCoordinatorID != id) {
-                        updateCoordinatorEndpoint(newCoordinatorID);
-                    } else {
-                        coordinatorId = id;
-                        coordinatorHost = host;
-                        coordinatorPort = port;
-                        isCoordinator = true;
-                        logger.println(getTimestamp() + "I AM NOW COORDINATOR");
-                    }
-                } else {
-                    logger.println(getTimestamp() + "New coordinator already set.");
-                    logger.println(getTimestamp() + "Redundant election cancelled.");
-                    continue;
-                }
+    /**
+     * @param shard shard
+     * @return true if this node has something to do with the shard's token: posts or deletes to commit, or for
+     *         shard 0, membership changes to make
+     */
+    private boolean hasWork(Shard shard) {
+        if (!shard.postsToMake.isEmpty() || !shard.pendingDeletes.isEmpty())
+            return true;
+        if (shard.index != 0)
+            return false;
+        if (!pendingJoins.isEmpty() || (leaveRequested && nothingToCommit()))
+            return true;
+        for (int failedId : splicedOut) {
+            if (membership.contains(failedId))
+                return true;
+        }
+        return false;
+    }
 
-                if (startID != id) {
-                    updateCoordinatorID(startID, newCoordinatorID);
-                } else {
-                    electionCompleted();
-                }
+    /**
+     * Uses a token that was left idle here, if another node has not been sent it since.
+     * @param shard shard the token belongs to
+     */
+    private synchronized void useIdleToken(Shard shard) {
+        if (closed)
+            return;
+        DemandToken token = shard.idleToken;
+        if (token == null) {
+            shard.requested = false;
+            if (hasWork(shard))
+                requestToken(shard);
+            return;
+        }
+        shard.idleToken = null;
+        holdToken(shard, token);
+    }
 
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
+    /**
+     * @param shard shard in on-demand mode
+     * @return sequence number of the next change this replica needs: the one after the last it applied, or the
+     *         first of the current epoch's range if that is later, since a token is only issued above every change
+     *         any replica had applied
+     */
+    private long nextExpectedSeq(Shard shard) {
+        return Math.max(shard.store.getLastAppliedSeq() + 1, (long) shard.epoch << EPOCH_SEQ_SHIFT);
+    }
 
-            } else if (msg.equals("ELECTION COMPLETE")) {
-                logger.println(getTimestamp() + "Election has been completed.");
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
-                passToken();
-            } else if (msg.equals("TOKEN")) {
-                System.out.println("token received");
-                logger.println(getTimestamp() + "RECEIVED TOKEN");
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
+    /**
+     * Holds a token sent to this node once this replica has every change made before it and the membership view
+     * the last holder had, which are sent separately and may be behind the token.
+     * @param shard shard the token belongs to
+     */
+    private void holdWhenCaughtUp(Shard shard) {
+        DemandToken token = shard.grantedToken;
+        if (token == null)
+            return;
+        if (membership.getVersion() < token.getVersion() || nextExpectedSeq(shard) < token.getNextSeq()) {
+            logger.debug("Holding token for shard " + shard.index + " until this replica catches up.");
+            return;
+        }
+        shard.grantedToken = null;
+        holdToken(shard, token);
+    }
 
-                passToken();
-            } else if (msg.equals("POST")) {
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
+    /**
+     * Applies changes from other token holders in sequence order, as far as there are no gaps.
+     * @param shard shard the changes were made to
+     */
+    private void applyCommits(Shard shard) {
+        while (!shard.commits.isEmpty() && shard.commits.firstKey() <= nextExpectedSeq(shard)) {
+            applyLog(shard, shard.commits.pollFirstEntry().getValue());
+            commitWal(shard);
+        }
+    }
 
-                String sender = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
+    /**
+     * Holds a shard's token in on-demand mode. Commits this node's queued posts and deletes and sends the changes
+     * straight to every other replica, then makes any waiting membership changes if this is shard 0. Every node
+     * whose latest request has not been granted yet joins the token's queue, in ring order from here, and the
+     * token goes to the head of the queue, or stays here idle if nobody is waiting.
+     * @param shard shard the token belongs to
+     * @param token token
+     */
+    private void holdToken(Shard shard, DemandToken token) {
+        shard.epoch = token.getEpoch();
+        token.setHolder(id);
+        long tokenReceived = System.nanoTime();
+        hasToken = true;
+        PostLog log = new PostLog(token.getNextSeq(), new ArrayList<>());
+        postMessages(shard.index, log, tokenReceived, Integer.MAX_VALUE);
+        token.setNextSeq(log.getNextSeq());
+        if (!log.getEntries().isEmpty()) {
+            Frame commit = Frame.commit(shard.index, token.getEpoch(), log);
+            for (Node member : membership.getNodes()) {
+                if (member.getId() != id)
+                    sendToNode(member, commit);
+            }
+        }
+        if (shard.index == 0)
+            changeMembership();
+        token.setVersion(membership.getVersion());
+        hasToken = false;
+        metrics.tokenHold.record(System.nanoTime() - tokenReceived);
+        token.setGranted(id, shard.requests.getOrDefault(id, 0));
+        shard.requested = false;
+        shard.requestedAt = 0;
+
+        if (departed) {
+            // every token this node has goes to the next node, which passes it on as usual
+            sendToNode(nextNode, token.toFrame());
+            for (Shard other : shards) {
+                if (other.idleToken != null)
+                    sendToNode(nextNode, other.idleToken.toFrame());
+                if (other.grantedToken != null)
+                    sendToNode(nextNode, other.grantedToken.toFrame());
+                other.idleToken = null;
+                other.grantedToken = null;
+            }
+            return;
+        }
 
-                String recipient = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
+        token.retainMembers(memberIds());
+        List<Node> nodes = membership.getNodes();
+        int self = indexOf(nodes, id);
+        for (int i = 1; i < nodes.size(); i++) {
+            int memberId = nodes.get(Math.floorMod(self + i, nodes.size())).getId();
+            if (memberId != id && token.isWaiting(memberId, shard.requests.getOrDefault(memberId, 0)))
+                token.getQueue().add(memberId);
+        }
+        grantNext(shard, token);
+        requestPending();
+    }
 
-                String post = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
+    /**
+     * Sends a token to the first node in its queue that can be reached. If there is none, the token stays here
+     * idle, and is used again straight away if this node still has work for it.
+     * @param shard shard the token belongs to
+     * @param token token, not held by this node
+     */
+    private void grantNext(Shard shard, DemandToken token) {
+        Integer nextId;
+        while ((nextId = token.getQueue().poll()) != null) {
+            Node target = membership.get(nextId);
+            if (target == null || splicedOut.contains(nextId))
+                continue;
+            long passStarted = System.nanoTime();
+            if (sendToNode(target, token.toFrame())) {
+                metrics.tokenPass.record(System.nanoTime() - passStarted);
+                logger.debug("Token for shard " + shard.index + " granted to Server " + nextId + ".");
+                return;
+            }
+            logger.error("ERROR Token for shard " + shard.index + " could not be granted to Server " + nextId + ".");
+        }
 
-                logger.println(getTimestamp() + "Closing connection with client.");
-                connected.close();
-                addPostToQueue(sender, recipient, post);
+        shard.idleToken = token;
+        if (hasWork(shard)) {
+            shard.requested = true;
+            heartbeats.execute(() -> useIdleToken(shard));
+        }
+    }
 
-            } else if (msg.equals("PULL")) {
-                logger.println(getTimestamp() + "Acknowledging client.");
-                logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                outToClient.println(msgToSend);
+    /**
+     * @return hop of the last token this node received or passed on, for each shard
+     */
+    private int[] tokenHops() {
+        int[] hops = new int[shards.length];
+        for (Shard shard : shards)
+            hops[shard.index] = shard.hop;
+        return hops;
+    }
 
-                String recipient = inFromClient.readLine();
-                logger.println(getTimestamp() + "Received from client: " + msg);
+    /**
+     * @return true if no shard has posts or deletes waiting for its token
+     */
+    private boolean nothingToCommit() {
+        for (Shard shard : shards) {
+            if (!shard.postsToMake.isEmpty() || !shard.pendingDeletes.isEmpty())
+                return false;
+        }
+        return true;
+    }
 
-                Post post = getPost(recipient);
+    private static int indexOf(List<Node> nodes, int nodeId) {
+        for (int i = 0; i < nodes.size(); i++) {
+            if (nodes.get(i).getId() == nodeId)
+                return i;
+        }
+        return -1;
+    }
 
-                if (post != null) {
-                    msgToSend = "INCOMING";
-                    logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                    outToClient.println(msgToSend);
+    private synchronized void removeLink(Node node) {
+        PeerLink link = links.remove(node.getId());
+        if (link != null)
+            link.close();
+    }
 
-                    msgToSend = post.getPost();
-                    logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                    outToClient.println(msgToSend);
+    /**
+     * Makes any waiting membership changes while holding the token for shard 0: drops nodes this node has spliced
+     * out, and then either takes this node out of the ring, once it has nothing left to commit, or lets in one
+     * joining node. Joins are taken one per visit so that the joiner's state, view and tokens all arrive down the
+     * same link. The new view goes around the ring ahead of the token.
+     */
+    private void changeMembership() {
+        ArrayList<Integer> previousMembers = memberIds();
+        boolean changed = false;
+        for (int failedId : splicedOut)
+            changed |= membership.remove(failedId);
+
+        boolean leaving = leaveRequested && nothingToCommit();
+        if (leaving && membership.size() < 2) {
+            logger.error("ERROR Cannot leave, this is the last node in the ring.");
+            leaveRequested = false;
+            leaving = false;
+        }
+
+        Node joiner = null;
+        if (leaving) {
+            membership.remove(id);
+            changed = true;
+        } else if (!pendingJoins.isEmpty()) {
+            joiner = pendingJoins.remove(0);
+            membership.insertAfter(id, joiner);
+            changed = true;
+        }
+        if (!changed)
+            return;
+
+        membership.setCoordinatorId(coordinatorId);
+        if (!membership.contains(coordinatorId))
+            membership.setCoordinatorId(leaving ? nextNode.getId() : id);
+        membership.nextVersion();
+        logger.info("Membership now at version " + membership.getVersion() + " with " + membership.size() + " nodes.");
+
+        if (leaving) {
+            departed = true;
+            leaveRequested = false;
+            if (!pendingJoins.isEmpty())
+                logger.error("ERROR Leaving, dropping " + pendingJoins.size() + " join requests.");
+            pendingJoins.clear();
+            sendToNode(nextNode, viewFrame());
+            broadcastView();
+            return;
+        }
+        if (joiner != null) {
+            for (Shard shard : shards)
+                sendToNode(joiner, Frame.state(shard.index, shard.store.snapshot(id)));
+        }
+        broadcastView();
+        applyView(previousMembers);
+    }
+
+    /**
+     * Brings this node in line with a newer membership view: follows any change of coordinator, relinks to the
+     * next member if that has changed, and passes the view on. A node that has just left is sent the view too, so
+     * that it knows it can stop.
+     * @param previousMembers IDs of the members of the view this node held before
+     */
+    private void applyView(List<Integer> previousMembers) {
+        for (Node member : membership.getNodes()) {
+            if (!previousMembers.contains(member.getId()))
+                splicedOut.remove((Integer) member.getId());
+        }
+
+        int viewCoordinator = membership.getCoordinatorId();
+        if (viewCoordinator == id && !isCoordinator) {
+            coordinatorId = id;
+            coordinatorHost = host;
+            coordinatorPort = port;
+            isCoordinator = true;
+            tokenIssued = true;
+            logger.info("I AM NOW COORDINATOR");
+        } else if (viewCoordinator != id && viewCoordinator != coordinatorId) {
+            updateCoordinatorEndpoint(viewCoordinator);
+        }
+
+        if (!membership.contains(id)) {
+            logger.error("ERROR This node has been removed from the ring, restart it with -Dserver.join to rejoin.");
+            return;
+        }
+
+        Node self = new Node(id, host, port);
+        Node successor = membership.successorOf(id, splicedOut);
+        if (successor == null)
+            successor = self;
+        if (nextNode == null || nextNode.getId() != successor.getId()) {
+            Node old = nextNode;
+            setNextNode(successor);
+            lastHeartbeatAck = System.nanoTime();
+            sendToNode(successor, Frame.previousNode(self));
+            if (old != null && !membership.contains(old.getId())) {
+                splicedOut.add(old.getId());
+                sendToNode(old, viewFrame());
+            }
+        }
+
+        if (joining) {
+            joining = false;
+            ringComplete = true;
+            logger.info("Joined the ring.");
+            requestPending();
+        }
+        if (nextNode.getId() != id)
+            sendToNode(nextNode, viewFrame());
+        releaseHeldFrames();
+    }
+
+    /**
+     * In on-demand mode no token follows a new view around the ring, so every member is sent it directly, ahead of
+     * any token granted under it.
+     */
+    private void broadcastView() {
+        if (!onDemand)
+            return;
+        Frame view = viewFrame();
+        for (Node member : membership.getNodes()) {
+            if (member.getId() != id)
+                sendToNode(member, view);
+        }
+    }
+
+    private ArrayList<Integer> memberIds() {
+        ArrayList<Integer> ids = new ArrayList<>();
+        for (Node member : membership.getNodes())
+            ids.add(member.getId());
+        return ids;
+    }
+
+    private Frame viewFrame() {
+        return Frame.membership(membership.getVersion(), membership.getCoordinatorId(),
+                new ArrayList<>(membership.getNodes()));
+    }
+
+    /**
+     * Asks for this node to leave the ring. It leaves the next time it holds the token with nothing left to commit.
+     */
+    synchronized void requestLeave() {
+        logger.info("Leave requested, leaving when the token next arrives.");
+        leaveRequested = true;
+        requestPending();
+    }
 
-                    msgToSend = post.getSender();
-                    logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                    outToClient.println(msgToSend);
+    /**
+     * Replays ring messages that arrived before this node was ready for them.
+     */
+    private void releaseHeldFrames() {
+        ArrayList<Frame> held = new ArrayList<>(framesBeforeRing);
+        framesBeforeRing.clear();
+        for (Frame heldFrame : held)
+            handleFrame(heldFrame);
+    }
+
+    /**
+     * Method used to build ring structure within the network. Every node is sent its previous and next nodes and
+     * the first membership view, then told the ring is complete, all nodes at once. All four go down the same link,
+     * so a node always knows its neighbours and the members before it can start an election; ring messages from
+     * neighbours that get there first are held until then.
+     * @param executor sends to each node
+     * @param ring nodes to build the ring from, in ring order
+     */
+    private void buildRing(ExecutorService executor, List<Node> ring) {
+        logger.info("Beginning ring construction.");
+        List<CompletableFuture<Void>> pushes = new ArrayList<>();
+        Frame view = Frame.membership(1, id, new ArrayList<>(ring));
+
+        for (int i = 0; i < ring.size(); i++) {
+            Node currentNode = ring.get(i);
+            Node nextNode = ring.get((i + 1) % ring.size());
+            Node previousNode = ring.get((i + ring.size() - 1) % ring.size());
+
+            pushes.add(CompletableFuture.runAsync(() -> {
+                logger.info("Updating Server " + currentNode.getId() + " next node.");
+                sendToNode(currentNode, Frame.previousNode(previousNode));
+                if (sendToNode(currentNode, Frame.nextNode(nextNode)))
+                    logger.info("New next node sent to " + currentNode.getId());
+                sendToNode(currentNode, view);
+                sendToNode(currentNode, Frame.complete());
+            }, executor));
+        }
+        CompletableFuture.allOf(pushes.toArray(new CompletableFuture<?>[0])).join();
+    }
+
+    /**
+     * Print next node
+     */
+    private void printNextNode() {
+        System.out.println("Next node ID: " + nextNode.getId());
+        System.out.println("Next node Host: " + nextNode.getHost());
+        System.out.println("Next node Port: " + nextNode.getPort());
+    }
+
+    /**
+     * Creates a new post and adds it to the queue, unless the queue for its shard already holds maxQueued posts.
+     * @param sender sender of post
+     * @param recipient desired recipient of post
+     * @param post message within the post
+     * @param onCommit run once the post has been committed, may be null
+     * @return true if the post was queued, false if it was turned away
+     */
+    boolean addPostToQueue(String sender, String recipient, String post, Runnable onCommit) {
+        if (departed) {
+            logger.error("ERROR This node has left the ring, dropping post.");
+            return false;
+        }
+        if (!shardFor(recipient).postsToMake.offer(new PendingPost(new Post(sender, recipient, post), onCommit), maxQueued)) {
+            metrics.postsRejected.incrementAndGet();
+            return false;
+        }
+        requestToken(shardFor(recipient));
+        return true;
+    }
+
+    /**
+     * Adds queued posts to shared resource in one batch, along with deletes for posts pulled from this node since
+     * the token last passed. Only called while holding the token for the shard. Stops once maxBatchSize posts or
+     * the token's credit have been used up, or the token has been held for maxHoldNanos. Posts count as committed
+     * once the batch is in the write-ahead log, if there is one.
+     * @param shardIndex shard the token belongs to
+     * @param log post store changes travelling with the token
+     * @param tokenReceived System.nanoTime() at which the token arrived
+     * @param credit most posts that may be made
+     * @return number of posts made
+     */
+    synchronized int postMessages(int shardIndex, PostLog log, long tokenReceived, int credit) {
+        Shard shard = shards[shardIndex];
+        Long postId;
+        while ((postId = shard.pendingDeletes.poll()) != null)
+            log.appendDelete(id, postId);
+
+        int limit = Math.min(maxBatchSize, credit);
+        ArrayList<PendingPost> batch = new ArrayList<>(Math.min(limit, shard.postsToMake.size()));
+        PendingPost pending;
+
+        while (batch.size() < limit && (pending = shard.postsToMake.poll()) != null) {
+            log.appendInsert(id, pending.getPost());
+            batch.add(pending);
+            if (System.nanoTime() - tokenReceived >= maxHoldNanos)
+                break;
+        }
+        applyLog(shard, log);
+        if (!batch.isEmpty()) {
+            shard.made += batch.size();
+            if (shard.wal != null) {
+                try {
+                    shard.wal.appendMade(shard.made);
+                } catch (IOException e) {
+                    logger.error("ERROR could not append to write-ahead log for shard " + shard.index + ".");
+                }
+            }
+        }
+        commitWal(shard);
+        long now = System.nanoTime();
+        for (PendingPost committed : batch) {
+            metrics.postCommit.record(now - committed.getQueuedAt());
+            committed.committed();
+        }
+
+        if (!batch.isEmpty())
+            recordBatch(batch.size(), shard.postsToMake.size());
+        return batch.size();
+    }
+
+    /**
+     * Records the size of a committed batch.
+     * @param count number of posts in the batch
+     * @param queued number of posts still queued for the shard
+     */
+    private void recordBatch(int count, int queued) {
+        metrics.batchSize.record(count);
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Committed batch of " + count + " posts, " + queued + " still queued.");
+            logger.debug("Batches: " + metrics.batchSize.getCount() + ", mean batch: " + metrics.batchSize.getMean()
+                    + ", largest batch: " + metrics.batchSize.getMax());
+        }
+    }
+
+    /**
+     * Renders this node's metrics, plus current queue depths, for the admin endpoint.
+     * @return metrics as plain text
+     */
+    private String renderMetrics() {
+        StringBuilder sb = new StringBuilder(4096);
+        metrics.render(sb);
+        synchronized (this) {
+            int queued = 0;
+            int stored = 0;
+            long offHeap = 0;
+            for (Shard shard : shards) {
+                queued += shard.postsToMake.size();
+                stored += shard.store.size();
+                offHeap += shard.store.offHeapBytes();
+            }
+            sb.append("posts_to_make_depth ").append(queued).append('\n');
+            sb.append("posts_stored ").append(stored).append('\n');
+            sb.append("posts_off_heap_bytes ").append(offHeap).append('\n');
+            sb.append("shards ").append(shards.length).append('\n');
+            sb.append("membership_version ").append(membership.getVersion()).append('\n');
+            sb.append("membership_size ").append(membership.size()).append('\n');
+        }
+        int waiting = 0;
+        for (List<ClientSession> sessions : subscribers.values())
+            waiting += sessions.size();
+        sb.append("subscribers ").append(waiting).append('\n');
+        sb.append("log_dropped_total ").append(logger.getDropped()).append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Retrieves post from this node's replica of the shared resource. The delete reaches other replicas the next
+     * time the token passes.
+     * @param recipient recipient of post to be retrieved
+     * @return post for recipient
+     */
+    Post getPost(String recipient) {
+        if (departed)
+            return null;
+        Shard shard = shardFor(recipient);
+        Map.Entry<Long, Post> taken = shard.store.take(recipient);
+        if (taken == null)
+            return null;
+
+        shard.pendingDeletes.offer(taken.getKey());
+        requestToken(shard);
+        return taken.getValue();
+    }
+
+    /**
+     * Retrieves several posts from this node's replica of the shared resource, oldest first.
+     * @param recipient recipient of posts to be retrieved
+     * @param max maximum number of posts to retrieve
+     * @return posts for recipient, empty if none
+     */
+    private List<Post> getPosts(String recipient, int max) {
+        ArrayList<Post> taken = new ArrayList<>();
+        Post post;
+
+        while (taken.size() < max && (post = getPost(recipient)) != null)
+            taken.add(post);
+        return taken;
+    }
+
+    /**
+     * Handles a ring message, whether it arrived as a frame on a persistent link or through a one-off connection.
+     * @param frame message received
+     */
+    private synchronized void handleFrame(Frame frame) {
+        if (closed)
+            return;
+        if (logger.isDebugEnabled())
+            logger.debug("Received frame: " + frame);
+
+        if ((nextNode == null || membership.getVersion() == 0) && frame.getOpcode() != Frame.HELLO
+                && frame.getOpcode() != Frame.NEXT_NODE && frame.getOpcode() != Frame.PREVIOUS_NODE
+                && frame.getOpcode() != Frame.HEARTBEAT && frame.getOpcode() != Frame.MEMBERSHIP
+                && frame.getOpcode() != Frame.STATE) {
+            logger.info("Not in the ring yet, holding " + frame.getCommand() + ".");
+            framesBeforeRing.add(frame);
+            return;
+        }
+
+        switch (frame.getOpcode()) {
+            case Frame.HELLO:
+                System.out.println(frame.getText());
+                break;
+
+            case Frame.NEXT_NODE:
+                // a new ring is being built, so any view restored from a snapshot no longer applies
+                if (restored && !ringComplete)
+                    membership = new Membership();
+                setNextNode(frame.getNode());
+                printNextNode();
+                logger.info("Waiting for ring completion...");
+                releaseHeldFrames();
+                break;
+
+            case Frame.PREVIOUS_NODE:
+                logger.info("Setting previous node for " + id + " to " + frame.getNode().getId());
+                previousNode = frame.getNode();
+                sendToNode(previousNode, Frame.heartbeatAck(id, tokenHops()));
+                break;
+
+            case Frame.COMPLETE:
+                logger.info("Completion confirmed.");
+                ringComplete = true;
+                checkForElection();
+                requestPending();
+                break;
+
+            case Frame.HEARTBEAT:
+                sendToNode(frame.getNode(), Frame.heartbeatAck(id, tokenHops()));
+                break;
+
+            case Frame.HEARTBEAT_ACK:
+                if (frame.getIds()[0] != nextNode.getId())
+                    break;
+                lastHeartbeatAck = System.nanoTime();
+                checkTokens(Arrays.copyOfRange(frame.getIds(), 1, frame.getIds().length));
+                break;
+
+            case Frame.TOKEN:
+                Shard shard = shardOf(frame);
+                if (shard == null)
+                    break;
+                int shardIndex = shard.index;
+                int epoch = frame.getIds()[1];
+                if (epoch < shard.epoch) {
+                    logger.info("Discarding token for shard " + shardIndex + " from epoch " + epoch + ", now on epoch "
+                            + shard.epoch + ".");
+                    metrics.staleTokensDropped.incrementAndGet();
+                    break;
+                }
+                shard.epoch = epoch;
+                shard.hop = frame.getIds()[2];
+                shard.outstanding = false;
+                shard.checkPending = false;
+
+                logger.debug("RECEIVED TOKEN");
+                long tokenReceived = System.nanoTime();
+                if (shard.lastTokenReceived != 0) {
+                    shard.lastRotationNanos = tokenReceived - shard.lastTokenReceived;
+                    metrics.ringRotation.record(shard.lastRotationNanos);
+                }
+                shard.lastTokenReceived = tokenReceived;
+                hasToken = true;
+                PostLog log = frame.getLog();
+                applyLog(shard, log);
+                log.trim(id);
+                for (int failedId : splicedOut)
+                    log.trim(failedId);
+                int credit = refillCredit(frame.getIds()[3]);
+                shard.credit = credit - postMessages(shardIndex, log, tokenReceived, credit);
+                if (shardIndex == 0)
+                    changeMembership();
+                hasToken = false;
+                metrics.tokenHold.record(System.nanoTime() - tokenReceived);
+                passToken(shard, log);
+                break;
+
+            case Frame.JOIN:
+                logger.info("Server " + frame.getNode().getId() + " asked to join, letting it in when the token next arrives.");
+                pendingJoins.add(frame.getNode());
+                requestToken(shards[0]);
+                if (nextNode.getId() == frame.getNode().getId() && nextNode.getId() != id) {
+                    // the next node restarted before it was missed, so any token last passed to it may be gone
+                    logger.info("Server " + nextNode.getId() + " restarted.");
+                    for (Shard restartedShard : shards)
+                        restartedShard.checkPending = restartedShard.outstanding;
+                }
+                break;
+
+            case Frame.MEMBERSHIP:
+                if (departed) {
+                    if (!frameHasMember(frame, id)) {
+                        logger.info("Left the ring.");
+                        System.out.println("Left the ring.");
+                        new Thread(this::close).start();
+                    }
+                    break;
+                }
+                ArrayList<Integer> previousMembers = memberIds();
+                if (membership.adopt(frame.getIds()[0], frame.getIds()[1], frame.getNodes())) {
+                    logger.info("Adopted membership version " + membership.getVersion() + " with " + membership.size() + " nodes.");
+                    applyView(previousMembers);
+                    for (Shard waiting : shards)
+                        holdWhenCaughtUp(waiting);
+                }
+                break;
+
+            case Frame.STATE:
+                Shard loaded = shardOf(frame);
+                if (loaded == null)
+                    break;
+                loaded.store.load(frame.getLog());
+                // posts already pulled from here stay pulled, though their deletes have not been committed yet
+                loaded.pendingDeletes.forEach(loaded.store::remove);
+                if (loaded.wal != null) {
+                    try {
+                        loaded.wal.snapshot(frame.getLog());
+                    } catch (IOException e) {
+                        logger.error("ERROR could not write snapshot to write-ahead log for shard " + loaded.index + ".");
+                    }
+                }
+                logger.info("Loaded " + loaded.store.size() + " posts for shard " + loaded.index + " from the ring.");
+                applyCommits(loaded);
+                holdWhenCaughtUp(loaded);
+                break;
+
+            case Frame.REQUEST:
+                Shard wanted = shardOf(frame);
+                if (wanted == null)
+                    break;
+                int requesterId = frame.getIds()[1];
+                int heard = wanted.requests.getOrDefault(requesterId, 0);
+                int number = wanted.requests.merge(requesterId, frame.getIds()[2], Math::max);
+                DemandToken idle = wanted.idleToken;
+                if (idle != null && idle.isWaiting(requesterId, number)) {
+                    wanted.idleToken = null;
+                    idle.getQueue().add(requesterId);
+                    grantNext(wanted, idle);
+                } else if (number == heard) {
+                    // sent again, so it has gone unanswered
+                    regenerateToken(wanted);
+                }
+                break;
+
+            case Frame.GRANT:
+                Shard grantedShard = shardOf(frame);
+                if (grantedShard == null)
+                    break;
+                DemandToken granted = DemandToken.fromFrame(frame);
+                if (granted.getEpoch() < grantedShard.epoch) {
+                    logger.info("Discarding token for shard " + grantedShard.index + " from epoch " + granted.getEpoch()
+                            + ", now on epoch " + grantedShard.epoch + ".");
+                    metrics.staleTokensDropped.incrementAndGet();
+                    break;
+                }
+                logger.debug("RECEIVED TOKEN");
+                grantedShard.epoch = granted.getEpoch();
+                grantedShard.grantedToken = granted;
+                grantedShard.grantedAt = System.nanoTime();
+                grantedShard.catchUpSent = 0;
+                holdWhenCaughtUp(grantedShard);
+                break;
+
+            case Frame.COMMIT:
+                Shard committed = shardOf(frame);
+                if (committed == null)
+                    break;
+                committed.epoch = Math.max(committed.epoch, frame.getIds()[1]);
+                PostLog changes = frame.getLog();
+                if (!changes.getEntries().isEmpty())
+                    committed.commits.put(changes.getEntries().get(0).getSeq(), changes);
+                applyCommits(committed);
+                holdWhenCaughtUp(committed);
+                break;
+
+            case Frame.CATCH_UP:
+                Shard behind = shardOf(frame);
+                if (behind == null)
+                    break;
+                Node requester = membership.get(frame.getIds()[1]);
+                if (requester == null)
+                    break;
+                logger.info("Server " + requester.getId() + " is missing changes to shard " + behind.index
+                        + ", sending it this replica.");
+                sendToNode(requester, viewFrame());
+                sendToNode(requester, Frame.state(behind.index, behind.store.snapshot(id)));
+                break;
+
+            case Frame.SEED:
+                Shard seeded = shardOf(frame);
+                if (seeded == null)
+                    break;
+                int issuerId = frame.getIds()[1];
+                int seenEpoch = Math.max(frame.getIds()[2], seeded.epoch);
+                int holderId = frame.getIds()[3];
+                if (holderId < 0 && (seeded.idleToken != null || seeded.grantedToken != null))
+                    holderId = id;
+                long seenNextSeq = Math.max(frame.getLog().getNextSeq(), seeded.store.getLastAppliedSeq() + 1);
+                if (issuerId != id) {
+                    if (membership.contains(issuerId))
+                        sendToNode(nextNode, Frame.seed(seeded.index, issuerId, seenEpoch, holderId, seenNextSeq));
+                } else if (seeded.seedStarted != 0 && seeded.regenerating && holderId >= 0) {
+                    seeded.seedStarted = 0;
+                    seeded.regenerating = false;
+                    logger.info("Token for shard " + seeded.index + " is with Server " + holderId + ", not issuing another.");
+                } else if (seeded.seedStarted != 0) {
+                    issueShardToken(seeded, seenEpoch, seenNextSeq);
+                }
+                break;
+
+            default:
+                if (!election.handle(frame))
+                    logger.error("ERROR unexpected " + frame.getCommand() + ".");
+        }
+    }
+
+    /**
+     * @param frame shard message, whose first ID is the shard
+     * @return shard the message is for, or null if this node has no such shard, as when nodes in a ring were
+     *         started with different numbers of shards
+     */
+    private Shard shardOf(Frame frame) {
+        int shardIndex = frame.getIds()[0];
+        if (shardIndex < 0 || shardIndex >= shards.length) {
+            logger.error("ERROR " + frame.getCommand() + " for shard " + shardIndex + ", but only " + shards.length
+                    + " shards.");
+            return null;
+        }
+        return shards[shardIndex];
+    }
+
+    private static boolean frameHasMember(Frame frame, int nodeId) {
+        for (Node member : frame.getNodes()) {
+            if (member.getId() == nodeId)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gives the election algorithm access to this node.
+     */
+    private class ElectionRing implements Election.Ring {
+        @Override
+        public int getId() {
+            return id;
+        }
+
+        @Override
+        public int getCoordinatorId() {
+            return coordinatorId;
+        }
+
+        @Override
+        public void sendToNext(Frame frame) {
+            send(nextNode, frame);
+        }
+
+        @Override
+        public void sendToPrevious(Frame frame) {
+            send(previousNode, frame);
+        }
+
+        @Override
+        public void sendToCoordinator(Frame frame) {
+            send(new Node(coordinatorId, coordinatorHost, coordinatorPort), frame);
+        }
+
+        private void send(Node node, Frame frame) {
+            metrics.electionMessages.incrementAndGet();
+            metrics.electionBytes.addAndGet(WireCodec.encodedSize(frame));
+            sendToNode(node, frame);
+        }
+
+        @Override
+        public void setCoordinator(int newCoordinatorId) {
+            if (newCoordinatorId != id) {
+                updateCoordinatorEndpoint(newCoordinatorId);
+            } else if (!isCoordinator || coordinatorId != id) {
+                coordinatorId = id;
+                coordinatorHost = host;
+                coordinatorPort = port;
+                isCoordinator = true;
+                tokenIssued = false;
+                logger.info("I AM NOW COORDINATOR");
+            }
+        }
+
+        @Override
+        public void electionFinished() {
+            recordElection();
+        }
+
+        @Override
+        public void issueToken() {
+            if (tokenIssued) {
+                logger.info("Token already issued.");
+                return;
+            }
+            tokenIssued = true;
+            for (Shard shard : shards) {
+                shard.regenerating = false;
+                startSeed(shard);
+            }
+        }
+    }
+
+    /**
+     * Server side of one connection, shared by every I/O mode. Works through the text protocol one line at a
+     * time, so the same code serves both blocking sockets and the selector loop. A LINK connection may negotiate
+     * binary frames, after which it is fed decoded frames instead of lines.
+     */
+    private class ClientSession implements LineProtocol {
+        private String command = null;
+        private final ArrayList<String> args = new ArrayList<>();
+        private boolean linked = false;
+        private boolean binary = false;
+        private volatile boolean finished = false;
+        private int pullLimit = 0;
+        private boolean ackOnCommit = false;
+        private long waitMs = 0;
+        private volatile String subscribedTo = null;
+        private ScheduledFuture<?> waitTimeout = null;
+        private long commandStarted;
+        private Sink sink;
+
+        private ClientSession() {
+            metrics.openConnections.incrementAndGet();
+            metrics.acceptedConnections.incrementAndGet();
+        }
+
+        @Override
+        public void closed() {
+            metrics.openConnections.decrementAndGet();
+            unsubscribe();
+        }
+
+        /**
+         * Waits for posts to reach a recipient's mailbox: for good if subscribing, otherwise until the first posts
+         * arrive or waitMs has passed. Any posts already waiting are delivered straight away.
+         * @param recipient recipient whose posts are wanted
+         */
+        private void subscribe(String recipient) {
+            subscribedTo = recipient;
+            subscribers.computeIfAbsent(recipient, r -> new CopyOnWriteArrayList<>()).add(this);
+            if (waitMs > 0)
+                waitTimeout = heartbeats.schedule(() -> deliveries.execute(this::expire), waitMs, TimeUnit.MILLISECONDS);
+            deliveries.execute(this::deliver);
+        }
+
+        private void unsubscribe() {
+            String recipient = subscribedTo;
+            if (recipient == null)
+                return;
+            subscribedTo = null;
+            if (waitTimeout != null)
+                waitTimeout.cancel(false);
+            subscribers.computeIfPresent(recipient, (r, waiting) -> {
+                waiting.remove(this);
+                return waiting.isEmpty() ? null : waiting;
+            });
+        }
+
+        /**
+         * Takes every post waiting for the subscribed recipient and sends them in one go. A long poll is over once
+         * it has been sent something. Only run on the delivery thread.
+         */
+        private void deliver() {
+            String recipient = subscribedTo;
+            if (recipient == null)
+                return;
+            List<Post> taken = getPosts(recipient, Integer.MAX_VALUE);
+            if (taken.isEmpty())
+                return;
+
+            ArrayList<String> lines = new ArrayList<>(1 + 2 * taken.size());
+            lines.add("INCOMING " + taken.size());
+            for (Post post : taken) {
+                lines.add(post.getPost());
+                lines.add(post.getSender());
+            }
+            if (waitMs > 0) {
+                unsubscribe();
+                metrics.pull.record(System.nanoTime() - commandStarted);
+                finish();
+            }
+            sink.send(String.join("\n", lines));
+        }
+
+        /**
+         * Ends a long poll that nothing arrived for. Only run on the delivery thread.
+         */
+        private void expire() {
+            if (subscribedTo == null)
+                return;
+            unsubscribe();
+            metrics.pull.record(System.nanoTime() - commandStarted);
+            finish();
+            sink.send("NO MESSAGES");
+        }
+
+        @Override
+        public void attach(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        public void onFrame(Frame frame) {
+            dispatch(frame);
+        }
+
+        @Override
+        public void onLine(String line, List<String> replies) {
+            if (logger.isDebugEnabled())
+                logger.debug("Received from client: " + line);
+
+            if (linked) {
+                if (command == null) {
+                    command = line;
+                } else {
+                    dispatch(command, line);
+                    command = null;
+                }
+                return;
+            }
+
+            if (command == null) {
+                command = line;
+                commandStarted = System.nanoTime();
+                startCommand(replies);
+            } else {
+                args.add(line);
+                continueCommand(replies);
+            }
+        }
+
+        private void reply(List<String> replies, String msgToSend) {
+            if (logger.isDebugEnabled())
+                logger.debug("Sending to client: " + msgToSend);
+            replies.add(msgToSend);
+        }
+
+        private void finish() {
+            logger.debug("Closing connection with client.");
+            finished = true;
+        }
+
+        private void dispatch(Frame frame) {
+            frameExecutor.execute(() -> handleFrame(frame));
+        }
+
+        private void dispatch(String frameCommand, String payload) {
+            Frame frame;
+            try {
+                frame = Frame.fromText(frameCommand, payload);
+            } catch (IllegalArgumentException e) {
+                logger.error("ERROR malformed " + frameCommand + " message: " + e.getMessage());
+                return;
+            }
+            if (frame != null)
+                dispatch(frame);
+            else
+                logger.error("ERROR unknown command.");
+        }
+
+        private void startCommand(List<String> replies) {
+            if (command.startsWith(PeerLink.LINK)) {
+                logger.debug("Accepting link.");
+                if (binaryWire && command.equals(PeerLink.LINK + " " + WireCodec.BINARY_MODE)) {
+                    reply(replies, "OK " + WireCodec.BINARY_MODE);
+                    binary = true;
                 } else {
-                    msgToSend = "NO MESSAGES";
-                    logger.println(getTimestamp() + "Sending to client: " + msgToSend);
-                    outToClient.println(msgToSend);
+                    reply(replies, "OK");
+                }
+                linked = true;
+                command = null;
+                return;
+            }
+
+            if (command.startsWith("PULL WAIT ")) {
+                try {
+                    waitMs = Long.parseLong(command.substring(10).trim());
+                } catch (NumberFormatException e) {
+                    waitMs = 0;
+                }
+                if (waitMs < 1) {
+                    logger.error("ERROR invalid pull wait.");
+                    finish();
+                    return;
+                }
+                command = "PULL WAIT";
+            } else if (command.startsWith("PULL ") && !command.equals("PULL STREAM")) {
+                pullLimit = parsePullLimit(command.substring(5));
+                if (pullLimit < 1) {
+                    logger.error("ERROR invalid pull count.");
+                    finish();
+                    return;
+                }
+                command = "PULL";
+            }
+
+            if (command.startsWith("POST STREAM")) {
+                ackOnCommit = command.endsWith("COMMITTED");
+                command = "POST STREAM";
+            }
+
+            switch (command) {
+                case "COMPLETE":
+                    finish();
+                    dispatch(command, "");
+                    break;
+                case "ELECTION COMPLETE":
+                    logger.debug("Acknowledging client.");
+                    reply(replies, "OK");
+                    finish();
+                    dispatch(command, "");
+                    break;
+                case "HELLO":
+                case "NEXT NODE":
+                case "PREVIOUS NODE":
+                case "ELECTION":
+                case "UPDATE COORDINATOR ID":
+                case "CANDIDATE":
+                case "ELECTED":
+                case "PROBE":
+                case "REPLY":
+                case "POST":
+                case "POST STREAM":
+                case "PULL":
+                case "PULL STREAM":
+                case "PULL WAIT":
+                case "SUBSCRIBE":
+                    logger.debug("Acknowledging client.");
+                    reply(replies, "OK");
+                    break;
+                case "LEAVE":
+                    requestLeave();
+                    reply(replies, "OK");
+                    finish();
+                    break;
+                default:
+                    logger.error("ERROR unknown command.");
+                    finish();
+            }
+        }
+
+        private void continueCommand(List<String> replies) {
+            switch (command) {
+                case "HELLO":
+                    System.out.println(args.get(0));
+                    reply(replies, "Hello Coordinator! From " + id);
+                    finish();
+                    break;
+                case "NEXT NODE":
+                case "PREVIOUS NODE":
+                case "ELECTION":
+                case "UPDATE COORDINATOR ID":
+                case "CANDIDATE":
+                case "ELECTED":
+                case "PROBE":
+                case "REPLY":
+                    finish();
+                    dispatch(command, args.get(0));
+                    break;
+                case "POST":
+                    if (args.size() == 3) {
+                        finish();
+                        if (!addPostToQueue(args.get(0), args.get(1), args.get(2), null))
+                            reply(replies, "BUSY " + retryAfterMs(args.get(1)));
+                        metrics.post.record(System.nanoTime() - commandStarted);
+                    }
+                    break;
+                case "POST STREAM":
+                    if (args.size() == 4) {
+                        String seq = args.get(0);
+                        boolean queued;
+                        if (ackOnCommit) {
+                            queued = addPostToQueue(args.get(1), args.get(2), args.get(3), () -> sink.send("ACK " + seq));
+                        } else {
+                            queued = addPostToQueue(args.get(1), args.get(2), args.get(3), null);
+                            if (queued)
+                                reply(replies, "ACK " + seq);
+                        }
+                        if (!queued)
+                            reply(replies, "BUSY " + seq + " " + retryAfterMs(args.get(2)));
+                        args.clear();
+                        metrics.post.record(System.nanoTime() - commandStarted);
+                        commandStarted = System.nanoTime();
+                    }
+                    break;
+                case "PULL":
+                    if (pullLimit > 0) {
+                        List<Post> taken = getPosts(args.get(0), pullLimit);
+
+                        if (!taken.isEmpty()) {
+                            reply(replies, "INCOMING " + taken.size());
+                            for (Post post : taken) {
+                                reply(replies, post.getPost());
+                                reply(replies, post.getSender());
+                            }
+                        } else {
+                            reply(replies, "NO MESSAGES");
+                        }
+                        metrics.pull.record(System.nanoTime() - commandStarted);
+                        finish();
+                        break;
+                    }
+
+                    Post post = getPost(args.get(0));
+
+                    if (post != null) {
+                        reply(replies, "INCOMING");
+                        reply(replies, post.getPost());
+                        reply(replies, post.getSender());
+                    } else {
+                        reply(replies, "NO MESSAGES");
+                    }
+                    metrics.pull.record(System.nanoTime() - commandStarted);
+                    finish();
+                    break;
+                case "PULL WAIT":
+                case "SUBSCRIBE":
+                    if (args.size() == 1 && subscribedTo == null)
+                        subscribe(args.get(0));
+                    break;
+                case "PULL STREAM":
+                    if (args.size() == 3) {
+                        String seq = args.get(0);
+                        int limit = parsePullLimit(args.get(2));
+                        List<Post> pulled = limit > 0 ? getPosts(args.get(1), limit) : new ArrayList<>();
+
+                        if (!pulled.isEmpty()) {
+                            reply(replies, "INCOMING " + seq + " " + pulled.size());
+                            for (Post streamed : pulled) {
+                                reply(replies, streamed.getPost());
+                                reply(replies, streamed.getSender());
+                            }
+                        } else {
+                            reply(replies, "NO MESSAGES " + seq);
+                        }
+                        args.clear();
+                        metrics.pull.record(System.nanoTime() - commandStarted);
+                        commandStarted = System.nanoTime();
+                    }
+                    break;
+            }
+        }
+
+        /**
+         * @param limit number of posts, or ALL
+         * @return most posts to pull, or 0 if limit is not valid
+         */
+        private int parsePullLimit(String limit) {
+            limit = limit.trim();
+            try {
+                return limit.equalsIgnoreCase("ALL") ? Integer.MAX_VALUE : Math.max(0, Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Serves a single connection to completion on the calling thread.
+     * @param connected socket to serve
+     */
+    private void serveConnection(Socket connected) {
+        ClientSession session = null;
+        try {
+            if (logger.isDebugEnabled())
+                logger.debug("Client " + connected.toString() + " connected.");
+            connected.setTcpNoDelay(true);
+            InputStream inFromClient = new BufferedInputStream(connected.getInputStream());
+            PrintWriter outToClient = new PrintWriter(new BufferedWriter(new OutputStreamWriter(connected.getOutputStream())), false);
+
+            session = new ClientSession();
+            ClientSession attached = session;
+            attached.attach(line -> {
+                synchronized (outToClient) {
+                    outToClient.println(line);
+                    outToClient.flush();
                 }
+                if (attached.isFinished()) {
+                    try {
+                        connected.shutdownInput();
+                    } catch (IOException ignored) {
+                    }
+                }
+            });
+            ArrayList<String> replies = new ArrayList<>();
+            String line;
+
+            while (!session.isFinished() && !session.isBinary() && (line = WireCodec.readLine(inFromClient)) != null) {
+                replies.clear();
+                session.onLine(line, replies);
+                synchronized (outToClient) {
+                    for (String reply : replies)
+                        outToClient.println(reply);
+                    outToClient.flush();
+                }
+            }
 
-                logger.println(getTimestamp() + "Closing connection with client.");
+            if (session.isBinary())
+                PeerLink.readFrames(inFromClient, true, session::onFrame);
+        } catch (IOException e) {
+            logger.error("ERROR IO Exception.");
+        } finally {
+            try {
                 connected.close();
+            } catch (IOException ignored) {
             }
+            if (session != null)
+                session.closed();
         }
     }
 
     /**
-     * Main method
+     * Main server listening loop. Each accepted connection is served on its own thread.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void listenForConnections() throws IOException, InterruptedException {
+        if (useSelector) {
+            listenWithSelector();
+            return;
+        }
+
+        while (!closed) {
+            logger.debug("Listening for connection...");
+            Socket connected;
+            try {
+                connected = listener.accept();
+            } catch (SocketException e) {
+                if (closed)
+                    return;
+                throw e;
+            }
+            Thread connectionThread = new Thread(() -> serveConnection(connected));
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+    /**
+     * Server listening loop for selector mode. All connections are multiplexed on one thread, and ring messages
+     * are handed to a separate thread so that passing the token never stalls client I/O.
+     * @throws IOException
+     */
+    private void listenWithSelector() throws IOException {
+        frameExecutor = Executors.newSingleThreadExecutor();
+        logger.info("Listening for connections with selector...");
+        selectorServer.run();
+    }
+
+    /**
+     * Main method. Behaviour is tuned with system properties, each given as -Dserver.[name]:
+     * <ul>
+     * <li>io: threads (default) or selector, to serve all connections from one selector thread.</li>
+     * <li>wire: binary (default) or text, to keep links between servers in readable frames for debugging.</li>
+     * <li>maxBatch, maxHoldMs: most queued posts made, and longest the token is held, per token visit.</li>
+     * <li>maxQueue: posts queued per shard, beyond which POST is answered with BUSY and a retry-after in ms.</li>
+     * <li>ringCredit: posts made with each token per rotation across the ring; by default maxBatch per node.</li>
+     * <li>tokenMode: ring (default) circulates each token, demand leaves it with its holder until asked for.</li>
+     * <li>logLevel: DEBUG, INFO or ERROR; per-message lines are only logged at DEBUG.</li>
+     * <li>adminPort: port on 127.0.0.1 metrics are served on over HTTP; by default port + 1000.</li>
+     * <li>hostFile: host file, servers.csv by default.</li>
+     * <li>election: chang-roberts (default), hirschberg-sinclair or classic.</li>
+     * <li>heartbeatMs, failureTimeoutMs: heartbeat period, and silence after which the next node is spliced out.</li>
+     * <li>bootstrapTimeoutMs: how long the coordinator waits for nodes to come online before building the ring.</li>
+     * <li>join: true to join a running ring, asking the member named by the coordinator arguments.</li>
+     * <li>shards: number of shards recipients are split into, each with its own token.</li>
+     * <li>postStorage: heap (default) or compact, to keep posts off the heap as UTF-8 records.</li>
+     * <li>walDir: directory for a write-ahead log of each shard's replica, replayed on restart.</li>
+     * <li>walSync: batch (default, once per token visit), interval (every walSyncMs) or never.</li>
+     * <li>walSegmentMb: size of each write-ahead log segment file.</li>
+     * <li>snapshotMs: how often this node's state is written to Server[id].snapshot, used to rejoin on restart.</li>
+     * <li>rejoinTimeoutMs: how long a restarted node waits to rejoin before the ring is built anew.</li>
+     * </ul>
+     * Every node in a ring must use the same tokenMode, election and shards. Sending LEAVE to a node takes it out
+     * of the ring.
      * @param args array of arguments, contain server ID, host and port, as well as coordinator ID, host and port.
      * @throws IOException
      */
@@ -709,34 +2341,150 @@ public class ServerNode {
             String coordinatorHost = args[4];
             int coordinatorPort = Integer.parseInt(args[5]);
             ss = new ServerNode(id, host, port, coordinatorId, coordinatorHost, coordinatorPort);
+            ss.useSelector = System.getProperty("server.io", "threads").equalsIgnoreCase("selector");
+            ss.binaryWire = !System.getProperty("server.wire", "binary").equalsIgnoreCase("text");
+            ss.maxBatchSize = Integer.getInteger("server.maxBatch", ss.maxBatchSize);
+            ss.maxHoldNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("server.maxHoldMs", 5));
+            ss.maxQueued = Integer.getInteger("server.maxQueue", ss.maxQueued);
+            ss.ringCredit = Integer.getInteger("server.ringCredit", ss.ringCredit);
+            ss.onDemand = System.getProperty("server.tokenMode", "ring").equalsIgnoreCase("demand");
+            ss.heartbeatMs = Long.getLong("server.heartbeatMs", ss.heartbeatMs);
+            ss.failureTimeoutMs = Long.getLong("server.failureTimeoutMs", ss.failureTimeoutMs);
+            ss.bootstrapTimeoutMs = Long.getLong("server.bootstrapTimeoutMs", ss.bootstrapTimeoutMs);
+            ss.joining = Boolean.getBoolean("server.join");
+            ss.shards = createShards(Math.max(1, Integer.getInteger("server.shards", 1)),
+                    System.getProperty("server.postStorage", "heap"));
+            ss.walDir = System.getProperty("server.walDir");
+            ss.walSync = PostWal.Sync.named(System.getProperty("server.walSync", "batch"));
+            ss.walSyncMs = Long.getLong("server.walSyncMs", ss.walSyncMs);
+            ss.walSegmentBytes = Integer.getInteger("server.walSegmentMb", 16) << 20;
+            ss.snapshotMs = Long.getLong("server.snapshotMs", ss.snapshotMs);
+            ss.rejoinTimeoutMs = Long.getLong("server.rejoinTimeoutMs", ss.rejoinTimeoutMs);
         } catch (IOException e) {
             System.out.println("Invalid details given.");
             System.exit(-1);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid option: " + e.getMessage());
+            System.exit(-1);
         }
 
         ss.initialiseServer();
+        new AdminServer(Integer.getInteger("server.adminPort", ss.port + 1000), ss::renderMetrics).start();
+        ss.start();
+    }
 
-        ServerNode finalSs = ss;
+    /**
+     * Starts listening for connections and watching the next node on the ring. If this node is joining, asks the
+     * member it was given to let it in. If it was restored from a snapshot, asks the members it knew of to let it
+     * back in. Otherwise, or if that fails, the coordinator builds the ring once every node in the host file is
+     * online. Must be called after initialiseServer. On the coordinator, returns once the
+     * ring has been built.
+     */
+    void start() {
+        heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeats.scheduleWithFixedDelay(this::checkNextNode, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        deliveries = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (walSync == PostWal.Sync.INTERVAL)
+            heartbeats.scheduleWithFixedDelay(this::syncWals, walSyncMs, walSyncMs, TimeUnit.MILLISECONDS);
+        if (snapshotMs > 0) {
+            // on a thread of its own, so that writing a large snapshot never holds up a heartbeat
+            snapshots = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshots.scheduleWithFixedDelay(this::writeSnapshot, snapshotMs, snapshotMs, TimeUnit.MILLISECONDS);
+        }
 
         //thread for server to listen on
         new Thread(() -> {
             try {
-                finalSs.listenForConnections();
+                listenForConnections();
             } catch (IOException | InterruptedException e) {
                 e.printStackTrace();
             }
         }).start();
 
+        if (joining) {
+            Node contact = new Node(coordinatorId, coordinatorHost, coordinatorPort);
+            logger.info("Asking Server " + contact.getId() + " to join the ring.");
+            if (!sendToNode(contact, Frame.join(new Node(id, host, port))))
+                logger.error("ERROR could not reach Server " + contact.getId() + " to join the ring.");
+            return;
+        }
+
+        if (restored) {
+            if (rejoin() && (!bootstrapsRing || awaitRing(rejoinTimeoutMs)))
+                return;
+            if (!bootstrapsRing) {
+                logger.error("ERROR could not reach any member to rejoin the ring.");
+                return;
+            }
+            logger.info("Could not rejoin the ring, building a new one.");
+            resetForBootstrap();
+        }
+
         //kick starts ring construction
-        if (ss.isCoordinator) {
-            ss.buildNodeList();
-            ss.printNodeList();
-            while (true) {
-                if (ss.checkAllServersOnline()) {
-                    ss.buildRing();
-                    break;
+        if (bootstrapsRing) {
+            List<Node> nodes = buildNodeList();
+            printNodeList(nodes);
+            ExecutorService bootstrap = Executors.newFixedThreadPool(Math.max(1, Math.min(nodes.size(), MAX_BOOTSTRAP_THREADS)));
+            try {
+                List<Node> online = checkAllServersOnline(bootstrap, nodes);
+                if (!online.isEmpty())
+                    buildRing(bootstrap, online);
+            } finally {
+                bootstrap.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Stops listening, closes links to other nodes and ignores any further ring messages, so that several nodes
+     * can be started and stopped within one process. Only supported in the default thread per connection mode.
+     */
+    void close() {
+        closed = true;
+        if (heartbeats != null)
+            heartbeats.shutdownNow();
+        if (snapshots != null)
+            snapshots.shutdownNow();
+        if (deliveries != null)
+            deliveries.shutdownNow();
+        try {
+            if (listener != null)
+                listener.close();
+            // a node that has left should not try to rejoin when restarted
+            if (departed)
+                Files.deleteIfExists(snapshotPath());
+        } catch (IOException ignored) {
+        }
+        synchronized (this) {
+            for (PeerLink link : links.values())
+                link.close();
+            links.clear();
+            for (Shard shard : shards) {
+                if (shard.wal == null)
+                    continue;
+                try {
+                    shard.wal.close();
+                } catch (IOException e) {
+                    logger.error("ERROR could not close write-ahead log for shard " + shard.index + ".");
                 }
             }
         }
+        logger.close();
+    }
+
+    Metrics getMetrics() {
+        return metrics;
     }
 }
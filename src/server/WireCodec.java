@@ -0,0 +1,586 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary encoding of ring messages. Each frame is an opcode byte, a varint body length and then the typed fields
+ * for that opcode. Strings are varint length prefixed UTF-8, integers are varints.
+ */
+public class WireCodec {
+    public static final int VERSION = 8;
+    public static final String BINARY_MODE = "BINARY/" + VERSION;
+
+    /**
+     * @param value value to be encoded
+     * @return number of bytes value takes as a varint
+     */
+    public static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint.");
+    }
+
+    public static int varlongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void writeVarlong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    public static long readVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varlong.");
+    }
+
+    /**
+     * @param s string to be encoded
+     * @return number of bytes s takes as UTF-8
+     */
+    public static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public static int stringSize(String s) {
+        int length = utf8Length(s);
+        return varintSize(length) + length;
+    }
+
+    public static void writeString(ByteBuffer buffer, String s) {
+        writeVarint(buffer, utf8Length(s));
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buffer.put((byte) (0xF0 | (cp >> 18)));
+                buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (cp & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        int length = readCount(buffer, 1);
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    public static int idsSize(int[] ids) {
+        int size = varintSize(ids.length);
+        for (int id : ids)
+            size += varintSize(id);
+        return size;
+    }
+
+    public static void writeIds(ByteBuffer buffer, int[] ids) {
+        writeVarint(buffer, ids.length);
+        for (int id : ids)
+            writeVarint(buffer, id);
+    }
+
+    public static int[] readIds(ByteBuffer buffer) {
+        int[] ids = new int[readCount(buffer, 1)];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = readVarint(buffer);
+        return ids;
+    }
+
+    /**
+     * @param buffer buffer positioned at a list of IDs
+     * @param min fewest IDs the frame needs
+     * @return IDs read
+     */
+    private static int[] readIds(ByteBuffer buffer, int min) {
+        int[] ids = readIds(buffer);
+        if (ids.length < min)
+            throw new IllegalArgumentException("Expected at least " + min + " IDs, got " + ids.length + ".");
+        return ids;
+    }
+
+    /**
+     * Reads the number of items that follow, checking that the buffer could hold that many, so that a bad count
+     * is rejected rather than allocated for.
+     * @param buffer buffer positioned at a count
+     * @param minItemBytes fewest bytes each item takes
+     * @return count
+     */
+    private static int readCount(ByteBuffer buffer, int minItemBytes) {
+        int count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining() / minItemBytes)
+            throw new IllegalArgumentException("Count " + count + " does not fit in " + buffer.remaining() + " bytes.");
+        return count;
+    }
+
+    public static int nodeSize(Node node) {
+        return varintSize(node.getId()) + stringSize(node.getHost()) + varintSize(node.getPort());
+    }
+
+    public static void writeNode(ByteBuffer buffer, Node node) {
+        writeVarint(buffer, node.getId());
+        writeString(buffer, node.getHost());
+        writeVarint(buffer, node.getPort());
+    }
+
+    public static Node readNode(ByteBuffer buffer) {
+        int id = readVarint(buffer);
+        String host = readString(buffer);
+        int port = readVarint(buffer);
+        return new Node(id, host, port);
+    }
+
+    public static int postSize(Post post) {
+        return stringSize(post.getSender()) + stringSize(post.getRecipient()) + stringSize(post.getPost());
+    }
+
+    public static void writePost(ByteBuffer buffer, Post post) {
+        writeString(buffer, post.getSender());
+        writeString(buffer, post.getRecipient());
+        writeString(buffer, post.getPost());
+    }
+
+    public static Post readPost(ByteBuffer buffer) {
+        String sender = readString(buffer);
+        String recipient = readString(buffer);
+        String post = readString(buffer);
+        return new Post(sender, recipient, post);
+    }
+
+    /**
+     * @param log log to be encoded
+     * @return number of bytes log takes. Entries are contiguous, so only the next sequence number is sent.
+     */
+    public static int logSize(PostLog log) {
+        int size = varlongSize(log.getNextSeq()) + varintSize(log.getEntries().size());
+        for (PostLog.Entry entry : log.getEntries()) {
+            size += 1 + varintSize(entry.getOrigin());
+            if (entry.getType() == PostLog.INSERT)
+                size += postSize(entry.getPost());
+            else
+                size += varlongSize(entry.getPostId());
+        }
+        return size;
+    }
+
+    public static void writeLog(ByteBuffer buffer, PostLog log) {
+        writeVarlong(buffer, log.getNextSeq());
+        writeVarint(buffer, log.getEntries().size());
+        for (PostLog.Entry entry : log.getEntries()) {
+            buffer.put(entry.getType());
+            writeVarint(buffer, entry.getOrigin());
+            if (entry.getType() == PostLog.INSERT)
+                writePost(buffer, entry.getPost());
+            else
+                writeVarlong(buffer, entry.getPostId());
+        }
+    }
+
+    public static PostLog readLog(ByteBuffer buffer) {
+        long nextSeq = readVarlong(buffer);
+        // type and origin, then a post of three strings or a post ID
+        int count = readCount(buffer, 3);
+        ArrayList<PostLog.Entry> entries = new ArrayList<>(count);
+        long seq = nextSeq - count;
+        for (int i = 0; i < count; i++, seq++) {
+            byte type = buffer.get();
+            int origin = readVarint(buffer);
+            if (type == PostLog.INSERT)
+                entries.add(new PostLog.Entry(seq, origin, type, seq, readPost(buffer)));
+            else
+                entries.add(new PostLog.Entry(seq, origin, type, readVarlong(buffer), null));
+        }
+        return new PostLog(nextSeq, entries);
+    }
+
+    /**
+     * @param snapshot snapshot to be encoded, see PostStore.snapshot
+     * @return number of bytes snapshot takes. Posts are not contiguous, so each is sent with its ID.
+     */
+    public static int snapshotSize(PostLog snapshot) {
+        int size = varlongSize(snapshot.getNextSeq()) + varintSize(snapshot.getEntries().size());
+        for (PostLog.Entry entry : snapshot.getEntries())
+            size += varlongSize(entry.getPostId()) + varintSize(entry.getOrigin()) + postSize(entry.getPost());
+        return size;
+    }
+
+    public static void writeSnapshot(ByteBuffer buffer, PostLog snapshot) {
+        writeVarlong(buffer, snapshot.getNextSeq());
+        writeVarint(buffer, snapshot.getEntries().size());
+        for (PostLog.Entry entry : snapshot.getEntries()) {
+            writeVarlong(buffer, entry.getPostId());
+            writeVarint(buffer, entry.getOrigin());
+            writePost(buffer, entry.getPost());
+        }
+    }
+
+    public static PostLog readSnapshot(ByteBuffer buffer) {
+        long nextSeq = readVarlong(buffer);
+        // post ID, origin and a post of three strings
+        int count = readCount(buffer, 5);
+        ArrayList<PostLog.Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long postId = readVarlong(buffer);
+            int origin = readVarint(buffer);
+            entries.add(new PostLog.Entry(postId, origin, PostLog.INSERT, postId, readPost(buffer)));
+        }
+        return new PostLog(nextSeq, entries);
+    }
+
+    public static int nodesSize(List<Node> nodes) {
+        int size = varintSize(nodes.size());
+        for (Node node : nodes)
+            size += nodeSize(node);
+        return size;
+    }
+
+    public static void writeNodes(ByteBuffer buffer, List<Node> nodes) {
+        writeVarint(buffer, nodes.size());
+        for (Node node : nodes)
+            writeNode(buffer, node);
+    }
+
+    public static List<Node> readNodes(ByteBuffer buffer) {
+        // ID, host and port
+        int count = readCount(buffer, 3);
+        ArrayList<Node> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            nodes.add(readNode(buffer));
+        return nodes;
+    }
+
+    private static int bodySize(Frame frame) {
+        switch (frame.getOpcode()) {
+            case Frame.HELLO:
+                return stringSize(frame.getText());
+            case Frame.NEXT_NODE:
+            case Frame.PREVIOUS_NODE:
+            case Frame.HEARTBEAT:
+            case Frame.JOIN:
+                return nodeSize(frame.getNode());
+            case Frame.ELECTION:
+            case Frame.UPDATE_COORDINATOR_ID:
+            case Frame.CANDIDATE:
+            case Frame.ELECTED:
+            case Frame.PROBE:
+            case Frame.REPLY:
+            case Frame.HEARTBEAT_ACK:
+            case Frame.REQUEST:
+            case Frame.CATCH_UP:
+                return idsSize(frame.getIds());
+            case Frame.TOKEN:
+            case Frame.GRANT:
+            case Frame.COMMIT:
+            case Frame.SEED:
+                return idsSize(frame.getIds()) + logSize(frame.getLog());
+            case Frame.MEMBERSHIP:
+                return idsSize(frame.getIds()) + nodesSize(frame.getNodes());
+            case Frame.STATE:
+                return idsSize(frame.getIds()) + snapshotSize(frame.getLog());
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @param frame frame to be encoded
+     * @return total number of bytes frame takes on the wire
+     */
+    public static int encodedSize(Frame frame) {
+        int body = bodySize(frame);
+        return 1 + varintSize(body) + body;
+    }
+
+    /**
+     * Encodes a frame into a buffer, which must have at least encodedSize(frame) bytes remaining.
+     * @param frame frame to be encoded
+     * @param buffer buffer to write to
+     */
+    public static void encode(Frame frame, ByteBuffer buffer) {
+        buffer.put(frame.getOpcode());
+        writeVarint(buffer, bodySize(frame));
+        switch (frame.getOpcode()) {
+            case Frame.HELLO:
+                writeString(buffer, frame.getText());
+                break;
+            case Frame.NEXT_NODE:
+            case Frame.PREVIOUS_NODE:
+            case Frame.HEARTBEAT:
+            case Frame.JOIN:
+                writeNode(buffer, frame.getNode());
+                break;
+            case Frame.ELECTION:
+            case Frame.UPDATE_COORDINATOR_ID:
+            case Frame.CANDIDATE:
+            case Frame.ELECTED:
+            case Frame.PROBE:
+            case Frame.REPLY:
+            case Frame.HEARTBEAT_ACK:
+            case Frame.REQUEST:
+            case Frame.CATCH_UP:
+                writeIds(buffer, frame.getIds());
+                break;
+            case Frame.TOKEN:
+            case Frame.GRANT:
+            case Frame.COMMIT:
+            case Frame.SEED:
+                writeIds(buffer, frame.getIds());
+                writeLog(buffer, frame.getLog());
+                break;
+            case Frame.MEMBERSHIP:
+                writeIds(buffer, frame.getIds());
+                writeNodes(buffer, frame.getNodes());
+                break;
+            case Frame.STATE:
+                writeIds(buffer, frame.getIds());
+                writeSnapshot(buffer, frame.getLog());
+                break;
+        }
+    }
+
+    /**
+     * Decodes the body of a frame.
+     * @param opcode opcode of the frame
+     * @param buffer buffer positioned at the start of the body
+     * @return decoded frame
+     */
+    private static Frame decodeBody(byte opcode, ByteBuffer buffer) {
+        switch (opcode) {
+            case Frame.HELLO:
+                return Frame.hello(readString(buffer));
+            case Frame.NEXT_NODE:
+                return Frame.nextNode(readNode(buffer));
+            case Frame.COMPLETE:
+                return Frame.complete();
+            case Frame.ELECTION:
+                return Frame.election(readIds(buffer, 1));
+            case Frame.UPDATE_COORDINATOR_ID:
+                int[] ids = readIds(buffer, 2);
+                return Frame.updateCoordinatorId(ids[0], ids[1]);
+            case Frame.ELECTION_COMPLETE:
+                return Frame.electionComplete();
+            case Frame.TOKEN:
+                ids = readIds(buffer, 4);
+                return Frame.token(ids[0], ids[1], ids[2], ids[3], readLog(buffer));
+            case Frame.PREVIOUS_NODE:
+                return Frame.previousNode(readNode(buffer));
+            case Frame.CANDIDATE:
+                return Frame.candidate(readIds(buffer, 1)[0]);
+            case Frame.ELECTED:
+                return Frame.elected(readIds(buffer, 1)[0]);
+            case Frame.PROBE:
+                ids = readIds(buffer, 4);
+                return Frame.probe(ids[0], ids[1], ids[2], ids[3]);
+            case Frame.REPLY:
+                ids = readIds(buffer, 3);
+                return Frame.reply(ids[0], ids[1], ids[2]);
+            case Frame.HEARTBEAT:
+                return Frame.heartbeat(readNode(buffer));
+            case Frame.HEARTBEAT_ACK:
+                ids = readIds(buffer, 1);
+                return Frame.heartbeatAck(ids[0], Arrays.copyOfRange(ids, 1, ids.length));
+            case Frame.JOIN:
+                return Frame.join(readNode(buffer));
+            case Frame.MEMBERSHIP:
+                ids = readIds(buffer, 2);
+                return Frame.membership(ids[0], ids[1], readNodes(buffer));
+            case Frame.STATE:
+                return Frame.state(readIds(buffer, 1)[0], readSnapshot(buffer));
+            case Frame.REQUEST:
+                ids = readIds(buffer, 3);
+                return Frame.request(ids[0], ids[1], ids[2]);
+            case Frame.CATCH_UP:
+                ids = readIds(buffer, 2);
+                return Frame.catchUp(ids[0], ids[1]);
+            case Frame.GRANT:
+                ids = readIds(buffer);
+                return Frame.grant(ids, readLog(buffer).getNextSeq());
+            case Frame.COMMIT:
+                ids = readIds(buffer, 2);
+                return Frame.commit(ids[0], ids[1], readLog(buffer));
+            case Frame.SEED:
+                ids = readIds(buffer, 4);
+                return Frame.seed(ids[0], ids[1], ids[2], ids[3], readLog(buffer).getNextSeq());
+            default:
+                throw new IllegalArgumentException("Unknown opcode " + opcode);
+        }
+    }
+
+    /**
+     * Decodes the next frame from a buffer if it holds a complete one.
+     * @param buffer buffer in read mode
+     * @return decoded frame, or null if buffer does not yet hold a whole frame. Position is left unchanged if null.
+     */
+    public static Frame decode(ByteBuffer buffer) {
+        int start = buffer.position();
+        byte opcode;
+        int length;
+        try {
+            opcode = buffer.get();
+            length = readVarint(buffer);
+        } catch (BufferUnderflowException e) {
+            buffer.position(start);
+            return null;
+        }
+        if (length < 0)
+            throw new IllegalArgumentException("Negative frame length " + length + ".");
+        if (buffer.remaining() < length) {
+            buffer.position(start);
+            return null;
+        }
+
+        int end = buffer.position() + length;
+        int limit = buffer.limit();
+        buffer.limit(end);
+        try {
+            return decodeBody(opcode, buffer);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame body.");
+        } finally {
+            buffer.limit(limit);
+            buffer.position(end);
+        }
+    }
+
+    /**
+     * Reads a whole frame from a blocking stream.
+     * @param in stream to read from
+     * @param scratch buffer to read the body into, used if large enough
+     * @return decoded frame, or null at end of stream
+     * @throws IOException
+     */
+    public static Frame readFrame(InputStream in, ByteBuffer scratch) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0)
+            return null;
+
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 35)
+                throw new IllegalArgumentException("Malformed varint.");
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException();
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        if (length < 0)
+            throw new IllegalArgumentException("Negative frame length " + length + ".");
+
+        ByteBuffer body;
+        if (length <= scratch.capacity()) {
+            body = scratch;
+            body.clear();
+            if (in.readNBytes(body.array(), 0, length) < length)
+                throw new EOFException();
+            body.limit(length);
+        } else {
+            // grows as the bytes arrive, so a bad length cannot make us allocate for bytes that never come
+            byte[] bytes = in.readNBytes(length);
+            if (bytes.length < length)
+                throw new EOFException();
+            body = ByteBuffer.wrap(bytes);
+        }
+        try {
+            return decodeBody((byte) opcode, body);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame body.");
+        }
+    }
+
+    /**
+     * Reads one text line from a stream without buffering past it, so the stream can switch to binary frames.
+     * @param in stream to read from
+     * @return line without its terminator, or null at end of stream
+     * @throws IOException
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0)
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}